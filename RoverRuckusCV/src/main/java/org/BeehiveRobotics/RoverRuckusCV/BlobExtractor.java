@@ -0,0 +1,411 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finds the connected blobs in a binary mask with a union-find labelling pass, as a lighter alternative to
+ * Imgproc.findContours followed by contourArea and boundingRect on every contour.
+ * For each blob it gives the area (in pixels), the bounding box and the centroid, all in primitive arrays that are
+ * reused from one call to the next, so nothing is allocated per frame once the arrays have grown to fit.
+ * Pixels are connected to all 8 of their neighbours, like the outer contours findContours finds.
+ *
+ * The mask can be split into horizontal stripes that are labelled on separate threads; blobs that cross a stripe
+ * boundary are joined up afterwards, so the result is the same as with a single stripe.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class BlobExtractor {
+    private final Stripe[] stripes;
+    private final ExecutorService pool;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    // provisional labels, one per pixel (0 is background), and the union-find forest over them
+    private int[] labels = new int[0];
+    private int[] parent = new int[1];
+    // the blob each provisional label ended up in
+    private int[] blobOf = new int[1];
+
+    private int width;
+    private int height;
+    private byte[] mask;
+
+    private int count;
+    private int[] area = new int[16];
+    private int[] left = new int[16];
+    private int[] top = new int[16];
+    private int[] right = new int[16];
+    private int[] bottom = new int[16];
+    private long[] sumX = new long[16];
+    private long[] sumY = new long[16];
+    private int[] boxWidth = new int[16];
+    private int[] boxHeight = new int[16];
+    private double[] centroidX = new double[16];
+    private double[] centroidY = new double[16];
+
+    /**
+     * Creates an extractor that labels the whole mask on the calling thread.
+     */
+    public BlobExtractor() {
+        this(1);
+    }
+
+    /**
+     * @param threads how many stripes to split the mask into, each labelled on its own thread; the calling thread
+     *                does one of them, so threads - 1 worker threads are started. Call {@link #shutdown()} when done.
+     */
+    public BlobExtractor(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("A BlobExtractor needs at least one thread!");
+        stripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) stripes[i] = new Stripe();
+        pool = threads == 1 ? null : Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+            private int created = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlobExtractor " + created++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads, if there are any. The extractor can't be used after this.
+     */
+    public void shutdown() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    /**
+     * Finds the blobs in a mask. The results can be read with the getters until the next call.
+     * @param mask width*height bytes, row by row; any non-zero byte is part of a blob
+     * @param width the width of the mask
+     * @param height the height of the mask
+     * @return the number of blobs found
+     */
+    public int extract(byte[] mask, int width, int height) {
+        if (mask.length < width * height) throw new IllegalArgumentException("The mask is smaller than width*height!");
+        this.mask = mask;
+        this.width = width;
+        this.height = height;
+        int pixels = width * height;
+        if (labels.length < pixels) {
+            labels = new int[pixels];
+            parent = new int[pixels + 1];
+            blobOf = new int[pixels + 1];
+        }
+
+        // stripes are only worth it if they're a few rows tall
+        int stripeCount = Math.max(1, Math.min(stripes.length, height / 8));
+        int rowsPerStripe = (height + stripeCount - 1) / Math.max(1, stripeCount);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            stripe.firstRow = Math.min(height, i * rowsPerStripe);
+            stripe.endRow = i < stripeCount ? Math.min(height, (i + 1) * rowsPerStripe) : stripe.firstRow;
+        }
+
+        runStripes(stripeCount, Stripe.LABEL);
+        // join up blobs that were cut in two by a stripe boundary
+        for (int i = 1; i < stripeCount; i++) {
+            joinRows(stripes[i].firstRow);
+        }
+        numberBlobs(stripeCount);
+        runStripes(stripeCount, Stripe.MEASURE);
+        combineStripes(stripeCount);
+
+        this.mask = null;
+        return count;
+    }
+
+    /**
+     * @return the number of blobs found by the last call to {@link #extract(byte[], int, int)}
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of pixels in each blob; only the first {@link #getCount()} entries are valid
+     */
+    public int[] getAreas() {
+        return area;
+    }
+
+    /**
+     * @return the left edge of each blob's bounding box; only the first {@link #getCount()} entries are valid
+     */
+    public int[] getLefts() {
+        return left;
+    }
+
+    /**
+     * @return the top edge of each blob's bounding box; only the first {@link #getCount()} entries are valid
+     */
+    public int[] getTops() {
+        return top;
+    }
+
+    /**
+     * @return the width of each blob's bounding box; only the first {@link #getCount()} entries are valid
+     */
+    public int[] getWidths() {
+        return boxWidth;
+    }
+
+    /**
+     * @return the height of each blob's bounding box; only the first {@link #getCount()} entries are valid
+     */
+    public int[] getHeights() {
+        return boxHeight;
+    }
+
+    /**
+     * @return the x coordinate of each blob's centroid; only the first {@link #getCount()} entries are valid
+     */
+    public double[] getCentroidXs() {
+        return centroidX;
+    }
+
+    /**
+     * @return the y coordinate of each blob's centroid; only the first {@link #getCount()} entries are valid
+     */
+    public double[] getCentroidYs() {
+        return centroidY;
+    }
+
+    private void runStripes(int stripeCount, int phase) {
+        for (int i = 0; i < stripeCount; i++) stripes[i].phase = phase;
+        if (stripeCount == 1) {
+            stripes[0].run();
+            return;
+        }
+        pending.clear();
+        for (int i = 1; i < stripeCount; i++) pending.add(pool.submit(stripes[i]));
+        stripes[0].run();
+        try {
+            for (Future<?> future : pending) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while extracting blobs", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A BlobExtractor stripe failed", e.getCause());
+        }
+    }
+
+    // unions the foreground pixels of a row with their neighbours in the row above
+    private void joinRows(int row) {
+        int rowStart = row * width;
+        int aboveStart = rowStart - width;
+        for (int x = 0; x < width; x++) {
+            int label = labels[rowStart + x];
+            if (label == 0) continue;
+            for (int dx = -1; dx <= 1; dx++) {
+                int nx = x + dx;
+                if (nx < 0 || nx >= width) continue;
+                int above = labels[aboveStart + nx];
+                if (above != 0) union(label, above);
+            }
+        }
+    }
+
+    // gives every union-find root a blob number, then points every label at its root's blob
+    private void numberBlobs(int stripeCount) {
+        count = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            Stripe stripe = stripes[i];
+            for (int label = stripe.firstLabel; label < stripe.nextLabel; label++) {
+                if (find(label) == label) blobOf[label] = count++;
+            }
+        }
+        for (int i = 0; i < stripeCount; i++) {
+            Stripe stripe = stripes[i];
+            for (int label = stripe.firstLabel; label < stripe.nextLabel; label++) {
+                blobOf[label] = blobOf[find(label)];
+            }
+        }
+    }
+
+    private void combineStripes(int stripeCount) {
+        ensureCapacity(count);
+        for (int b = 0; b < count; b++) {
+            area[b] = 0;
+            left[b] = Integer.MAX_VALUE;
+            top[b] = Integer.MAX_VALUE;
+            right[b] = -1;
+            bottom[b] = -1;
+            sumX[b] = 0;
+            sumY[b] = 0;
+        }
+        for (int i = 0; i < stripeCount; i++) {
+            Stripe stripe = stripes[i];
+            for (int b = 0; b < count; b++) {
+                if (stripe.area[b] == 0) continue;
+                area[b] += stripe.area[b];
+                left[b] = Math.min(left[b], stripe.left[b]);
+                top[b] = Math.min(top[b], stripe.top[b]);
+                right[b] = Math.max(right[b], stripe.right[b]);
+                bottom[b] = Math.max(bottom[b], stripe.bottom[b]);
+                sumX[b] += stripe.sumX[b];
+                sumY[b] += stripe.sumY[b];
+            }
+        }
+        for (int b = 0; b < count; b++) {
+            boxWidth[b] = right[b] - left[b] + 1;
+            boxHeight[b] = bottom[b] - top[b] + 1;
+            centroidX[b] = (double) sumX[b] / area[b];
+            centroidY[b] = (double) sumY[b] / area[b];
+        }
+    }
+
+    private void ensureCapacity(int blobs) {
+        if (area.length >= blobs) return;
+        int size = Math.max(blobs, area.length * 2);
+        area = new int[size];
+        left = new int[size];
+        top = new int[size];
+        right = new int[size];
+        bottom = new int[size];
+        sumX = new long[size];
+        sumY = new long[size];
+        boxWidth = new int[size];
+        boxHeight = new int[size];
+        centroidX = new double[size];
+        centroidY = new double[size];
+    }
+
+    private int find(int label) {
+        int root = label;
+        while (parent[root] != root) root = parent[root];
+        // path compression, so later finds are quick
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        return root;
+    }
+
+    // the smaller label always becomes the root, which keeps roots inside the stripe they started in
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) parent[rootB] = rootA;
+        else if (rootB < rootA) parent[rootA] = rootB;
+    }
+
+    /**
+     * A horizontal band of the mask. Each stripe only creates labels in its own range (starting from its first pixel's
+     * index + 1), so stripes never touch each other's part of the union-find forest while labelling.
+     */
+    private class Stripe implements Runnable {
+        static final int LABEL = 0;
+        static final int MEASURE = 1;
+
+        int phase;
+        int firstRow;
+        int endRow;
+        int firstLabel;
+        int nextLabel;
+
+        int[] area = new int[16];
+        int[] left = new int[16];
+        int[] top = new int[16];
+        int[] right = new int[16];
+        int[] bottom = new int[16];
+        long[] sumX = new long[16];
+        long[] sumY = new long[16];
+
+        @Override
+        public void run() {
+            if (phase == LABEL) label();
+            else measure();
+        }
+
+        private void label() {
+            final byte[] mask = BlobExtractor.this.mask;
+            final int[] labels = BlobExtractor.this.labels;
+            final int[] parent = BlobExtractor.this.parent;
+            final int width = BlobExtractor.this.width;
+            firstLabel = firstRow * width + 1;
+            nextLabel = firstLabel;
+            for (int y = firstRow; y < endRow; y++) {
+                final int row = y * width;
+                final boolean hasAbove = y > firstRow;
+                for (int x = 0; x < width; x++) {
+                    final int i = row + x;
+                    if (mask[i] == 0) {
+                        labels[i] = 0;
+                        continue;
+                    }
+                    int label = x > 0 ? labels[i - 1] : 0;
+                    if (hasAbove) {
+                        final int above = i - width;
+                        label = connect(label, x > 0 ? labels[above - 1] : 0);
+                        label = connect(label, labels[above]);
+                        label = connect(label, x + 1 < width ? labels[above + 1] : 0);
+                    }
+                    if (label == 0) {
+                        label = nextLabel++;
+                        parent[label] = label;
+                    }
+                    labels[i] = label;
+                }
+            }
+        }
+
+        // picks the label for a pixel touching two labelled neighbours, recording that they're the same blob
+        private int connect(int label, int neighbour) {
+            if (neighbour == 0) return label;
+            if (label == 0) return neighbour;
+            if (label != neighbour) union(label, neighbour);
+            return Math.min(label, neighbour);
+        }
+
+        private void measure() {
+            final int[] labels = BlobExtractor.this.labels;
+            final int[] blobOf = BlobExtractor.this.blobOf;
+            final int width = BlobExtractor.this.width;
+            final int blobs = count;
+            if (area.length < blobs) {
+                int size = Math.max(blobs, area.length * 2);
+                area = new int[size];
+                left = new int[size];
+                top = new int[size];
+                right = new int[size];
+                bottom = new int[size];
+                sumX = new long[size];
+                sumY = new long[size];
+            }
+            for (int b = 0; b < blobs; b++) {
+                area[b] = 0;
+                left[b] = Integer.MAX_VALUE;
+                top[b] = Integer.MAX_VALUE;
+                right[b] = -1;
+                bottom[b] = -1;
+                sumX[b] = 0;
+                sumY[b] = 0;
+            }
+            for (int y = firstRow; y < endRow; y++) {
+                final int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    final int label = labels[row + x];
+                    if (label == 0) continue;
+                    final int b = blobOf[label];
+                    area[b]++;
+                    if (x < left[b]) left[b] = x;
+                    if (x > right[b]) right[b] = x;
+                    if (y < top[b]) top[b] = y;
+                    bottom[b] = y;
+                    sumX[b] += x;
+                    sumY[b] += y;
+                }
+            }
+        }
+    }
+}
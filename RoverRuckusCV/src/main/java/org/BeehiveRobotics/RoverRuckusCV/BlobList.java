@@ -0,0 +1,183 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of detection candidates kept as parallel primitive arrays: a bounding box, an area and a class label
+ * for each one. Detectors keep one around, clear it every frame and filter it in place, so once the arrays have grown
+ * to fit nothing is allocated per frame and nothing is boxed.
+ *
+ * {@link #snapshot()} makes an immutable copy that can safely be handed to other threads.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class BlobList {
+    private int size = 0;
+    private int[] x;
+    private int[] y;
+    private int[] width;
+    private int[] height;
+    private int[] area;
+    private int[] label;
+    private final boolean immutable;
+
+    /**
+     * Creates an empty list.
+     */
+    public BlobList() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty list.
+     * @param capacity how many blobs to make room for up front; the list grows past this if needed
+     */
+    public BlobList(int capacity) {
+        this(new int[capacity], new int[capacity], new int[capacity], new int[capacity], new int[capacity], new int[capacity], 0, false);
+    }
+
+    private BlobList(int[] x, int[] y, int[] width, int[] height, int[] area, int[] label, int size, boolean immutable) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.area = area;
+        this.label = label;
+        this.size = size;
+        this.immutable = immutable;
+    }
+
+    /**
+     * @return the number of blobs in the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the list has no blobs in it
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every blob, keeping the arrays for reuse.
+     */
+    public void clear() {
+        checkMutable();
+        size = 0;
+    }
+
+    /**
+     * Adds a blob to the end of the list.
+     * @param x the left edge of the bounding box
+     * @param y the top edge of the bounding box
+     * @param width the width of the bounding box
+     * @param height the height of the bounding box
+     * @param area the area of the blob itself
+     * @param label what kind of blob it is; the meaning is up to the detector
+     */
+    public void add(int x, int y, int width, int height, int area, int label) {
+        checkMutable();
+        if (size == this.x.length) grow(size + 1);
+        this.x[size] = x;
+        this.y[size] = y;
+        this.width[size] = width;
+        this.height[size] = height;
+        this.area[size] = area;
+        this.label[size] = label;
+        size++;
+    }
+
+    /**
+     * Adds every blob in another list to the end of this one.
+     * @param other the list to copy from
+     */
+    public void addAll(BlobList other) {
+        checkMutable();
+        if (size + other.size > x.length) grow(size + other.size);
+        System.arraycopy(other.x, 0, x, size, other.size);
+        System.arraycopy(other.y, 0, y, size, other.size);
+        System.arraycopy(other.width, 0, width, size, other.size);
+        System.arraycopy(other.height, 0, height, size, other.size);
+        System.arraycopy(other.area, 0, area, size, other.size);
+        System.arraycopy(other.label, 0, label, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Removes a blob, moving every later blob down one place, like ArrayList.remove.
+     * @param index the blob to remove
+     */
+    public void remove(int index) {
+        checkMutable();
+        checkIndex(index);
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(x, index + 1, x, index, moved);
+            System.arraycopy(y, index + 1, y, index, moved);
+            System.arraycopy(width, index + 1, width, index, moved);
+            System.arraycopy(height, index + 1, height, index, moved);
+            System.arraycopy(area, index + 1, area, index, moved);
+            System.arraycopy(label, index + 1, label, index, moved);
+        }
+        size--;
+    }
+
+    /**
+     * @return an immutable copy of this list, sized to fit
+     */
+    public BlobList snapshot() {
+        return new BlobList(Arrays.copyOf(x, size), Arrays.copyOf(y, size), Arrays.copyOf(width, size),
+                Arrays.copyOf(height, size), Arrays.copyOf(area, size), Arrays.copyOf(label, size), size, true);
+    }
+
+    public int getX(int index) {
+        checkIndex(index);
+        return x[index];
+    }
+
+    public int getY(int index) {
+        checkIndex(index);
+        return y[index];
+    }
+
+    public int getWidth(int index) {
+        checkIndex(index);
+        return width[index];
+    }
+
+    public int getHeight(int index) {
+        checkIndex(index);
+        return height[index];
+    }
+
+    public int getArea(int index) {
+        checkIndex(index);
+        return area[index];
+    }
+
+    public int getLabel(int index) {
+        checkIndex(index);
+        return label[index];
+    }
+
+    private void grow(int needed) {
+        int capacity = Math.max(needed, x.length * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        area = Arrays.copyOf(area, capacity);
+        label = Arrays.copyOf(label, capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    private void checkMutable() {
+        if (immutable) throw new UnsupportedOperationException("This BlobList is an immutable snapshot!");
+    }
+}
@@ -0,0 +1,44 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Mat;
+
+/**
+ * One frame from a {@link FrameSource}, with the same methods as OpenCV's CameraBridgeViewBase.CvCameraViewFrame.
+ * That one comes with the Android camera classes, so this is what frames look like off the phone; OpenCVPipeline
+ * turns one into the other when it replays frames. The frame and its Mats must not be used once the source has
+ * moved on to the next one.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public interface CameraFrame {
+    /**
+     * @return the frame in RGBA
+     */
+    Mat rgba();
+
+    /**
+     * @return the frame in gray
+     */
+    Mat gray();
+
+    /**
+     * @return the frame as it was captured, in NV21: height rows of Y followed by height/2 rows of interleaved V and U
+     */
+    Mat yuv();
+
+    /**
+     * @return the same data as {@link #yuv()} in a byte array, without copying it, or null if the frame isn't backed
+     *         by one
+     */
+    byte[] yuvData();
+
+    /**
+     * @return when the frame was handed over, in System.nanoTime() time
+     */
+    long timestamp();
+
+    /**
+     * @return the frame's number, counting up from 0; gaps mean frames were skipped
+     */
+    long sequence();
+}
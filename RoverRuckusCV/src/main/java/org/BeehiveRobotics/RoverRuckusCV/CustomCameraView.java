@@ -1,16 +1,20 @@
 package org.BeehiveRobotics.RoverRuckusCV;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.util.Log;
+import android.view.Surface;
 
 import org.opencv.android.JavaCameraView;
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
 /**
  * Created by daniel on 11/11/17.
@@ -47,10 +51,127 @@ import org.opencv.core.Mat;
 public class CustomCameraView extends JavaCameraView {
     private static final String TAG = "CustomCameraView";
 
+    // Drawing costs as much as some pipelines, and happens on the same thread, so it can be cut down or skipped
+    private volatile int displayInterval = 1;
+    private volatile int displayScale = 1;
+    private volatile boolean displayOnlyWhenVisible = true;
+    private long framesSinceDisplay = 0;
+    private final Mat displayMat = new Mat();
+    private static final Size SCALE_BY_FACTOR = new Size();
+    // Frames go to this instead of being drawn on the canvas when it's set
+    private volatile GLFrameView glView;
+    private volatile OverlayView glOverlayView;
+    private volatile boolean glLumaOnly;
+    // How many clockwise quarter turns the Y plane needs for the display; looked up once per camera session
+    private volatile int lumaTurns = -1;
+    // Drawn over the frames that are shown, instead of the pipeline drawing into every frame it processes
+    private volatile Overlay overlay;
+    private final OverlayPainter overlayPainter = new OverlayPainter();
+
     public CustomCameraView(Context context, int cameraId) {
         super(context, cameraId);
     }
 
+    /**
+     * @param interval draw every interval-th processed frame, e.g. 3 to draw 10 of every 30 frames; 0 to never draw
+     */
+    public void setDisplayInterval(int interval) {
+        if (interval < 0) throw new IllegalArgumentException("The display interval can't be negative!");
+        displayInterval = interval;
+    }
+
+    /**
+     * @param scale shrink frames by this factor before drawing them, e.g. 2 to draw a quarter of the pixels;
+     *              they're stretched back up to fill the same space on the screen
+     */
+    public void setDisplayScale(int scale) {
+        if (scale < 1) throw new IllegalArgumentException("The display scale must be at least 1!");
+        displayScale = scale;
+    }
+
+    /**
+     * @param enabled whether to skip drawing while the view isn't on the screen, e.g. while another activity is in
+     *                front of the robot controller; on by default
+     */
+    public void setDisplayOnlyWhenVisible(boolean enabled) {
+        displayOnlyWhenVisible = enabled;
+    }
+
+    /**
+     * Sends frames to a {@link GLFrameView} instead of drawing them on this view's canvas. This view still has to be
+     * on the screen, under the GL view, since the camera only starts once its surface exists.
+     * @param view the view to draw on, or null to go back to drawing on the canvas
+     * @param overlayView the view over the GL view that draws the overlay, or null if there isn't one
+     * @param lumaOnly draw the camera's Y plane, turned by the GPU, instead of the Mat the listener returns
+     */
+    public void setGLFrameView(GLFrameView view, OverlayView overlayView, boolean lumaOnly) {
+        glLumaOnly = lumaOnly;
+        glOverlayView = overlayView;
+        glView = view;
+    }
+
+    /**
+     * @param overlay what to draw over the frames on the canvas, or null for nothing; in the GL display modes,
+     *                the {@link OverlayView} draws it instead
+     */
+    public void setOverlay(Overlay overlay) {
+        this.overlay = overlay;
+    }
+
+    /**
+     * Also resumes the {@link GLFrameView}'s render thread. A GLSurfaceView expects the activity to forward its
+     * onResume, but the robot controller's activity doesn't know about ours, so it follows the camera instead.
+     */
+    @Override
+    public void enableView() {
+        GLFrameView glView = this.glView;
+        if (glView != null) glView.onResume();
+        super.enableView();
+    }
+
+    /**
+     * Also pauses the {@link GLFrameView}'s render thread once the camera has stopped, so it lets go of its GL
+     * context instead of holding on to it while nothing is being drawn.
+     */
+    @Override
+    public void disableView() {
+        super.disableView();
+        GLFrameView glView = this.glView;
+        if (glView != null) glView.onPause();
+    }
+
+    @Override
+    protected boolean connectCamera(int width, int height) {
+        lumaTurns = -1;
+        return super.connectCamera(width, height);
+    }
+
+    /**
+     * @return whether frames are being drawn at all: the display interval isn't 0, and the view is on the screen or
+     *         frames are drawn even when it isn't
+     */
+    public boolean isDisplayVisible() {
+        return displayInterval != 0 && (!displayOnlyWhenVisible || isShown());
+    }
+
+    /**
+     * Only meaningful on the camera thread, while the listener is processing a frame.
+     * @return whether the frame being processed will be drawn once the listener returns it
+     */
+    public boolean isFrameDisplayed() {
+        return isDisplayVisible() && framesSinceDisplay + 1 >= displayInterval;
+    }
+
+    // Called for every processed frame, so the interval is counted even while the view is hidden
+    private boolean shouldDisplay() {
+        int interval = displayInterval;
+        if (interval == 0) return false;
+        boolean due = ++framesSinceDisplay >= interval;
+        if (!due) return false;
+        framesSinceDisplay = 0;
+        return !displayOnlyWhenVisible || isShown();
+    }
+
     @Override
     protected void deliverAndDrawFrame(CvCameraViewFrame frame) {
         Mat modified;
@@ -62,6 +183,31 @@ public class CustomCameraView extends JavaCameraView {
         } else {
             modified = frame.rgba();
         }
+        onFrameProcessed();
+
+        if (!shouldDisplay()) return;
+
+        GLFrameView glView = this.glView;
+        if (glView != null && glLumaOnly) {
+            // drawn straight from the camera's frame, so it doesn't matter what the listener returned
+            drawLuma(glView, frame);
+            invalidateOverlay();
+            return;
+        }
+        if (modified == null) return;
+
+        int shrink = displayScale;
+        if (shrink > 1) {
+            double factor = 1.0 / shrink;
+            Imgproc.resize(modified, displayMat, SCALE_BY_FACTOR, factor, factor, Imgproc.INTER_NEAREST);
+            modified = displayMat;
+        }
+
+        if (glView != null) {
+            glView.submit(modified, 0);
+            invalidateOverlay();
+            return;
+        }
 
         boolean bmpValid = true;
         if (modified != null) {
@@ -90,18 +236,20 @@ public class CustomCameraView extends JavaCameraView {
                 // maximize size of the bitmap to remove black borders in portrait orientation
                 //mCacheBitmap = Bitmap.createScaledBitmap(mCacheBitmap, canvas.getHeight(), canvas.getWidth(), true);
 
-                if (mScale != 0) {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                            new Rect((int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2),
-                                    (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2),
-                                    (int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2 + mScale*mCacheBitmap.getWidth()),
-                                    (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2 + mScale*mCacheBitmap.getHeight())), null);
-                } else {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                            new Rect((canvas.getWidth() - mCacheBitmap.getWidth()) / 2,
-                                    (canvas.getHeight() - mCacheBitmap.getHeight()) / 2,
-                                    (canvas.getWidth() - mCacheBitmap.getWidth()) / 2 + mCacheBitmap.getWidth(),
-                                    (canvas.getHeight() - mCacheBitmap.getHeight()) / 2 + mCacheBitmap.getHeight()), null);
+                // frames processed or drawn at a lower resolution are stretched back up to the size the camera delivered
+                float scale = (mScale != 0 ? mScale : 1) * Math.max(mFrameWidth, mFrameHeight)
+                        / Math.max(mCacheBitmap.getWidth(), mCacheBitmap.getHeight());
+                canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
+                        new Rect((int)((canvas.getWidth() - scale*mCacheBitmap.getWidth()) / 2),
+                                (int)((canvas.getHeight() - scale*mCacheBitmap.getHeight()) / 2),
+                                (int)((canvas.getWidth() - scale*mCacheBitmap.getWidth()) / 2 + scale*mCacheBitmap.getWidth()),
+                                (int)((canvas.getHeight() - scale*mCacheBitmap.getHeight()) / 2 + scale*mCacheBitmap.getHeight())), null);
+
+                Overlay overlay = this.overlay;
+                if (overlay != null) {
+                    overlayPainter.draw(overlay, canvas, (canvas.getWidth() - scale*mCacheBitmap.getWidth()) / 2,
+                            (canvas.getHeight() - scale*mCacheBitmap.getHeight()) / 2,
+                            scale*mCacheBitmap.getWidth(), scale*mCacheBitmap.getHeight());
                 }
 
                 // temporarily rotate canvas to draw FPS meter in correct orientation in portrait
@@ -122,4 +270,40 @@ public class CustomCameraView extends JavaCameraView {
             }
         }
     }
+
+    private void invalidateOverlay() {
+        OverlayView overlayView = glOverlayView;
+        if (overlayView != null) overlayView.postInvalidate();
+    }
+
+    // The Y plane is handed over in the camera's orientation, and the GL view turns it the way OpenCVPipeline would
+    private void drawLuma(GLFrameView glView, CvCameraViewFrame frame) {
+        int turns = lumaTurns;
+        if (turns == -1) {
+            switch (((Activity) getContext()).getWindowManager().getDefaultDisplay().getRotation()) {
+                case Surface.ROTATION_0:
+                    turns = 1;
+                    break;
+                case Surface.ROTATION_270:
+                    turns = 2;
+                    break;
+                default:
+                    turns = 0;
+            }
+            lumaTurns = turns;
+        }
+        int shrink = displayScale;
+        byte[] data = frame.yuvData();
+        if (shrink == 1 && data != null) {
+            glView.submitLuma(data, mFrameWidth, mFrameHeight, turns);
+            return;
+        }
+        Mat luma = frame.gray();
+        if (shrink > 1) {
+            double factor = 1.0 / shrink;
+            Imgproc.resize(luma, displayMat, SCALE_BY_FACTOR, factor, factor, Imgproc.INTER_NEAREST);
+            luma = displayMat;
+        }
+        glView.submit(luma, turns);
+    }
 }
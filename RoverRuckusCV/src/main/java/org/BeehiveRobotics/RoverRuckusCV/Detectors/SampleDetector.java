@@ -1,240 +1,274 @@
 package org.BeehiveRobotics.RoverRuckusCV.Detectors;
 
 import android.content.Context;
+import android.util.Log;
 
+import org.BeehiveRobotics.RoverRuckusCV.BlobList;
 import org.BeehiveRobotics.RoverRuckusCV.OpenCVPipeline;
+import org.BeehiveRobotics.RoverRuckusCV.StageTimer;
+import org.BeehiveRobotics.RoverRuckusCV.StagedExecutor;
+import org.BeehiveRobotics.RoverRuckusCV.YuvColorTable;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
-import org.opencv.core.Scalar;
-import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Size;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-
-import org.opencv.imgproc.Imgproc;
 
 //This will detect which position the gold ball is in
+//The detecting itself is done by SampleFinder, which also runs off the phone; the numbers to calibrate are in there.
 public class SampleDetector extends OpenCVPipeline {
+    private static final String TAG = "SampleDetector";
 
-    // CALIBRATE THESE NUMBERS FOR YOUR TEAM
-    private final double MIN_BALL_SIZE = 6000;
-    private final double MAX_BALL_SIZE = 12000;
-    private final double MIN_CUBE_SIZE = 5000;
-    private final double MAX_CUBE_SIZE = 10000;
-
-    //These are hsv values. In that order. H, S, V. 
-    //H is [0,179], both S and V are [0,255].
-    private final Scalar lowYellow  = new Scalar(16,  80,  60);
-    private final Scalar highYellow = new Scalar(32,  255, 255);
-    private final Scalar lowWhite   = new Scalar(0,   0,   225);
-    private final Scalar highWhite  = new Scalar(179, 100, 255);
+    //These shouldn't need changing
+    public enum CubePosition {
+        LEFT, MIDDLE, RIGHT, UNKNOWN;
+    }
 
-    //These probably make it slower if they are enabled, but it's helpful for seeing what's going on 
-    private boolean showContours   = true;
-    private boolean showRectangles = true;
+    //The labels of the candidates from getCandidates
+    public static final int YELLOW = SampleFinder.YELLOW;
+    public static final int WHITE  = SampleFinder.WHITE;
 
-    //In our team, separation anxiety
-    private double THRESHOLD_Y_VALUE_FROM_CUBE = 30;
-    private double THRESHOLD_SIDE_LENGTH_DIFFERENCE_ALLOWED = 0.2;
-    //END OF USER CALIBRATION
+    private final SampleFinder finder = new SampleFinder();
 
+    //The colour table labels yellow and white straight from the camera's YUV data, in one pass
+    private static final String COLOR_TABLE_FILE = "SampleDetector.lut";
+    private boolean useColorTable = false;
 
-    //These shouldn't need changing
-    public enum CubePosition {
-        LEFT, MIDDLE, RIGHT, UNKNOWN;
+    //Everything one frame needs while it is being processed. Serial mode reuses a single one of these,
+    //pipelined mode passes a few of them between the stage threads.
+    private static class SampleFrame extends StagedExecutor.Buffer {
+        private final SampleFinder.Frame frame = new SampleFinder.Frame();
     }
 
-    private Mat hsv = new Mat();
+    private final SampleFrame serialFrame = new SampleFrame();
+
+    //Pipelined mode runs convert -> threshold -> contours -> classify each on their own thread
+    private boolean pipelined = false;
+    private StagedExecutor<SampleFrame> executor;
+
+    //Shows up in getStats, to see which stage takes the longest
+    private final StageTimer convertTimer   = getStageTimer("SampleDetector convert");
+    private final StageTimer thresholdTimer = getStageTimer("SampleDetector threshold");
+    private final StageTimer contoursTimer  = getStageTimer("SampleDetector contours");
+    private final StageTimer classifyTimer  = getStageTimer("SampleDetector classify");
 
-    private Size blurSize = new Size(3, 3);
+    private volatile CubePosition currentCubePosition = CubePosition.UNKNOWN;
+    //When the frame behind currentCubePosition was captured, or -1 before any frame found the cube
+    private volatile long cubePositionTimestamp = -1;
+    private volatile BlobList currentCandidates = new BlobList().snapshot();
 
-    private final Scalar RED   = new Scalar(255, 0,   0);
-    private final Scalar GREEN = new Scalar(0,   255, 0);
-    private final Scalar CYAN  = new Scalar(0,   255, 255);
-    private final Scalar BLUE  = new Scalar(0,   0,   255);
+    //How long getCubePosition waits for each frame before giving up, e.g. if the camera isn't running
+    private static final long FRAME_TIMEOUT_MS = 1000;
 
-    private ArrayList<MatOfPoint> yellowContours         = new ArrayList<MatOfPoint>();
-    private ArrayList<MatOfPoint> whiteContours          = new ArrayList<MatOfPoint>();
-    private ArrayList<MatOfPoint> yellowContoursFiltered = new ArrayList<MatOfPoint>();
-    private ArrayList<MatOfPoint> whiteContoursFiltered  = new ArrayList<MatOfPoint>();
+    public SampleDetector() {
+        //Frames are published from publish(), which runs on another thread when pipelined
+        setAutoPublishFrames(false);
+        //Nothing here uses the gray frame
+        setFrameFormats(FORMAT_RGBA);
+    }
 
-    private ArrayList<Rect> yellowRects = new ArrayList<Rect>();
-    private ArrayList<Rect> whiteRects  = new ArrayList<Rect>();
+    public void showContours(boolean enabled) {
+        finder.showContours(enabled);
+    }
 
-    private ArrayList<Double> yellowYValues = new ArrayList<Double>();
-    private ArrayList<Double> whiteYValues  = new ArrayList<Double>();
+    public void showRectangles(boolean enabled) {
+        finder.showRectangles(enabled);
+    }
 
-    private Mat yellowThreshold = new Mat();
-    private Mat whiteThreshold  = new Mat();
+    //When pipelined, each stage runs on its own core, so more frames get processed per second.
+    //The frames take about as long to go through as before, so the boxes drawn on the screen lag the picture a little.
+    public synchronized void setPipelined(boolean enabled) {
+        pipelined = enabled;
+    }
 
-    private CubePosition currentCubePosition = CubePosition.UNKNOWN;
+    //Sets the part of the frame that gets searched, as fractions of the frame's width and height (0 to 1).
+    //This takes effect from the next frame.
+    public void setRegionOfInterest(double left, double top, double width, double height) {
+        finder.setRegionOfInterest(left, top, width, height);
+    }
 
-    private int currentFrame = 0;
-    
-    public synchronized void showContours(boolean enabled) {
-        showContours = enabled;
+    //The colour table skips the RGBA and HSV conversions and both inRange passes.
+    //It's built from SampleFinder's HSV ranges the first time, then saved and memory-mapped after that.
+    public synchronized void setColorTableEnabled(boolean enabled) {
+        useColorTable = enabled;
+        //The RGBA frame is still drawn on and shown on the screen
+        setFrameFormats(enabled ? FORMAT_RGBA | FORMAT_RAW : FORMAT_RGBA);
     }
 
-    public synchronized void showRectangles(boolean enabled) {
-        showRectangles = enabled;
+    //The blob extractor replaces findContours, contourArea and boundingRect with a single pass over each mask.
+    //Its sizes are pixel counts rather than outline areas, so they come out slightly bigger; no outlines get drawn.
+    public void setBlobExtractorEnabled(boolean enabled) {
+        finder.setBlobExtractorEnabled(enabled);
     }
 
     @Override
     public Mat processFrame(Mat rgba, Mat grayscale) {
-        Size matSize = rgba.size();
-        
-        //Convert RGB to HSV
-        Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV, 3);
-        
-        //Find everything in a range of HSV values. H is [0, 179], S is [0,255], V is [0,255].
-        //This numbers may need to be changed depending on lighting, camera, etc.
-        //First is yellow, second is white
-        //The numbers were calibrated from a Nexus 5 phone, in the lighting at our school.
-        Core.inRange(hsv, lowYellow, highYellow, yellowThreshold);
-        Core.inRange(hsv, lowWhite, highWhite, whiteThreshold);
-        
-        // Blur the image to remove noise, and put the overall shape together
-        //Imgproc.blur(yellowThreshold, yellowThreshold, blurSize);
-        //Imgproc.blur(whiteThreshold, whiteThreshold, blurSize);
-
-        // Clear all lists
-        yellowContours.clear();
-        whiteContours.clear();
-        yellowContoursFiltered.clear();
-        whiteContoursFiltered.clear();
-        yellowRects.clear();
-        whiteRects.clear();
-
-        // Fills contour list with outlines of yellow and white
-        Imgproc.findContours(yellowThreshold, yellowContours, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-        Imgproc.findContours(whiteThreshold, whiteContours, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-        
-        yellowContoursFiltered = new ArrayList<>();
-        whiteContoursFiltered = new ArrayList<>();
-
-        //For some reason if you use a foreach (AKA enhanced for loop) here it throws a ConcurrentModificationException
-        for(int i = 0; i < yellowContours.size(); i++) {
-            MatOfPoint contour = yellowContours.get(i);
-            double area = Math.abs(Imgproc.contourArea(contour));
-            if(area > MIN_CUBE_SIZE && area < MAX_CUBE_SIZE) {
-                yellowContoursFiltered.add(contour);
+        //The raw frame can be missing for a frame or two right after the colour table is turned on
+        byte[] rawData = getRawFrameData();
+        boolean labelWithTable = useColorTable && (rawData != null || getRawFrame() != null);
+        if (labelWithTable && finder.getColorTable() == null) finder.setColorTable(loadColorTable());
+
+        if (pipelined) {
+            if (executor == null) executor = createExecutor();
+            if (!executor.isRunning()) executor.start();
+            SampleFrame buffer = executor.acquire();
+            //If every frame is still in flight the pipeline is full, so this one is dropped
+            if (buffer != null) {
+                SampleFinder.Frame frame = buffer.frame;
+                begin(frame, rgba, labelWithTable, rawData);
+                //The overlay is recorded a few frames later, so there's no telling which frame it will be drawn over
+                frame.setOverlayShown(isDisplayVisible());
+                //The camera's Mats and bytes are reused for the next frame
+                finder.keepInput(frame);
+                executor.submit(buffer);
             }
+            return rgba;
         }
-        for(int i = 0; i < whiteContours.size(); i++) {
-            MatOfPoint contour = whiteContours.get(i);
-            double area = Math.abs(Imgproc.contourArea(contour));
-            if(area > MIN_BALL_SIZE && area < MAX_BALL_SIZE) {
-                whiteContoursFiltered.add(contour);
-            }
-        }
-        
-        for(MatOfPoint contour: yellowContoursFiltered) {
-            Rect rectangle = Imgproc.boundingRect(contour);
-            double x = rectangle.x;
-            double y = rectangle.y;
-            double w = rectangle.width;
-            double h = rectangle.height;
-            
-            double sideRatio = w/h;
-
-            Point centerPoint = new Point(x + (w/2), y + (h/2));
-
-            if(Math.abs(sideRatio - 1) < THRESHOLD_SIDE_LENGTH_DIFFERENCE_ALLOWED) {
-                yellowRects.add(rectangle);
-            }
+        if (executor != null && executor.isRunning()) executor.stop();
+
+        SampleFinder.Frame frame = serialFrame.frame;
+        begin(frame, rgba, labelWithTable, rawData);
+        frame.setOverlayShown(isOverlayShown());
+        long start = convertTimer.start();
+        finder.convert(frame);
+        convertTimer.stop(start);
+        start = thresholdTimer.start();
+        finder.threshold(frame);
+        thresholdTimer.stop(start);
+        start = contoursTimer.start();
+        finder.findContours(frame);
+        contoursTimer.stop(start);
+        start = classifyTimer.start();
+        finder.classify(frame);
+        classifyTimer.stop(start);
+        publish(frame);
 
-            if(showRectangles) {
-                Imgproc.rectangle(rgba, new Point(x, y), new Point((x+w), (y+h)), BLUE, 1);
-            }
+        return rgba;
+    }
+
+    private void begin(SampleFinder.Frame frame, Mat rgba, boolean labelWithTable, byte[] rawData) {
+        finder.begin(frame, rgba, getProcessingScale(), getDisplayRotation(), getFrameTimestamp(), getFrameSequence());
+        if (labelWithTable) {
+            finder.setRaw(frame, rawData, getRawFrame(), getCameraFrameWidth(), getCameraFrameHeight());
         }
+    }
 
-        for(MatOfPoint contour: whiteContoursFiltered) {
-            Rect rectangle = Imgproc.boundingRect(contour);
-            double x = rectangle.x;
-            double y = rectangle.y;
-            double w = rectangle.width;
-            double h = rectangle.height;
-            
-            double sideRatio = w/h;
-            Point centerPoint = new Point(x + (w/2), y + (h/2));
-
-            if(Math.abs(sideRatio - 1) < THRESHOLD_SIDE_LENGTH_DIFFERENCE_ALLOWED) {
-                whiteRects.add(rectangle);
-            }
+    @Override
+    protected void onProcessingStopped() {
+        super.onProcessingStopped();
+        //Only now is nothing else inside processFrame, so the executor can't be restarted and the extractor isn't in use
+        if (executor != null) executor.stop();
+        finder.shutdown();
+    }
 
-            if(showRectangles) {
-                Imgproc.rectangle(rgba, new Point(x, y), new Point((x+w), (y+h)), RED, 1);
+    private StagedExecutor<SampleFrame> createExecutor() {
+        SampleFrame[] frames = new SampleFrame[4];
+        for (int i = 0; i < frames.length; i++) frames[i] = new SampleFrame();
+        return new StagedExecutor<SampleFrame>(frames, new StagedExecutor.Sink<SampleFrame>() {
+            @Override
+            public void onComplete(SampleFrame buffer) {
+                publish(buffer.frame);
             }
-        }   
-        
-        //Start filtering contours based on others positions
-        if(yellowRects.size()==1 && whiteRects.size()!=0) {
-            final Rect yellowRect = yellowRects.get(0);
-            for(int i = 0; i < whiteRects.size(); i++) {
-                final Rect whiteRect = whiteRects.get(i);
-                if(Math.abs(whiteRect.y - yellowRect.y) > THRESHOLD_Y_VALUE_FROM_CUBE) {
-                    whiteRects.remove(i);
-                }
+        }).addStage("SampleDetector convert", new StagedExecutor.Stage<SampleFrame>() {
+            @Override
+            public void process(SampleFrame buffer) {
+                long start = convertTimer.start();
+                finder.convert(buffer.frame);
+                convertTimer.stop(start);
             }
-
-        }
-        if(whiteRects.size() == 2 && yellowRects.size() != 0) {
-            final double yAverage = (whiteRects.get(0).y + whiteRects.get(1).y) / 2;
-            for(int i = 0; i < yellowRects.size(); i++) {
-                final Rect yellowRect = yellowRects.get(i);
-                if(Math.abs(yAverage - yellowRect.y) > THRESHOLD_Y_VALUE_FROM_CUBE) {
-                    yellowRects.remove(i);
-                }
-                
+        }).addStage("SampleDetector threshold", new StagedExecutor.Stage<SampleFrame>() {
+            @Override
+            public void process(SampleFrame buffer) {
+                long start = thresholdTimer.start();
+                finder.threshold(buffer.frame);
+                thresholdTimer.stop(start);
             }
-        }
-        
-        if(yellowRects.size() == 1 && whiteRects.size() == 2) {
-            if(yellowRects.get(0).x < whiteRects.get(0).x) {
-                if(yellowRects.get(0).x < whiteRects.get(1).x) {
-                    currentCubePosition = CubePosition.LEFT;
-                } else {
-                    currentCubePosition = CubePosition.MIDDLE;
-                }
-            } else {
-                if(yellowRects.get(0).x > whiteRects.get(1).x) {
-                    currentCubePosition = CubePosition.RIGHT;
-                } else {
-                    currentCubePosition = CubePosition.MIDDLE;
-                }
+        }).addStage("SampleDetector contours", new StagedExecutor.Stage<SampleFrame>() {
+            @Override
+            public void process(SampleFrame buffer) {
+                long start = contoursTimer.start();
+                finder.findContours(buffer.frame);
+                contoursTimer.stop(start);
             }
-            Imgproc.putText(rgba, currentCubePosition.toString(), new Point(30, 30), 0, 1, CYAN);
+        }).addStage("SampleDetector classify", new StagedExecutor.Stage<SampleFrame>() {
+            @Override
+            public void process(SampleFrame buffer) {
+                long start = classifyTimer.start();
+                finder.classify(buffer.frame);
+                classifyTimer.stop(start);
+            }
+        });
+    }
+
+    private YuvColorTable loadColorTable() {
+        if (context == null) return finder.buildColorTable();
+        File file = new File(context.getFilesDir(), COLOR_TABLE_FILE);
+        try {
+            YuvColorTable table = finder.loadColorTable(file);
+            if (table != null) return table;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't load the colour table, rebuilding it", e);
         }
-        if(showContours) {
-            // Draws the outlines of the yellow over the image on the screen. Colored blue.
-            Imgproc.drawContours(rgba, yellowContoursFiltered, -1, BLUE, 2, 8);
-            // Draws the outlines of the white over the image on the screen. Colored red.
-            Imgproc.drawContours(rgba, whiteContoursFiltered, -1, RED, 2, 8);
+        //Either there's no saved table yet, or the HSV ranges changed since it was saved
+        YuvColorTable table = finder.buildColorTable();
+        try {
+            table.save(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't save the colour table", e);
         }
-        
-        currentFrame++;
-        if(currentFrame > 200) {currentFrame = 0;}
+        return table;
+    }
 
-        return rgba;
+    //Makes the result of a frame visible to getCubePosition
+    private void publish(SampleFinder.Frame frame) {
+        //Only frames that found exactly one cube and two balls change the answer
+        if(frame.getCubePosition() != SampleFinder.CubePosition.UNKNOWN) {
+            cubePositionTimestamp = frame.getTimestamp();
+            //Same constants in the same order
+            currentCubePosition = CubePosition.values()[frame.getCubePosition().ordinal()];
+        }
+        currentCandidates = frame.getCandidates().snapshot();
+        finder.draw(frame, getOverlay());
+        //In pipelined mode this runs after later frames have already started, so the frame has to be named
+        publishFrame(frame.getTimestamp(), frame.getSequence());
+    }
+
+    //The cubes and balls the last processed frame found, after filtering; use getLabel to tell them apart (YELLOW or WHITE).
+    //The boxes and areas are at full resolution, in the display's orientation: with a processing scale of 2 they're still
+    //measured on the full size frame, not the half size one that was processed.
+    //This is an immutable copy, so it's safe to keep and read from any thread.
+    public BlobList getCandidates() {
+        return currentCandidates;
+    }
+
+    //How long ago the camera captured the last frame that found the cube, or -1 if none has yet
+    public long getCubePositionAge(TimeUnit unit) {
+        long timestamp = cubePositionTimestamp;
+        if(timestamp < 0) {
+            return -1;
+        }
+        return unit.convert(System.nanoTime() - timestamp, TimeUnit.NANOSECONDS);
     }
 
     public CubePosition getCubePosition(int framesToTest) throws InterruptedException {
         int left = 0;
         int middle = 0;
         int right = 0;
-        currentFrame = 0;
         for(int frame = 0; frame < framesToTest; frame++) {
+            //Sleeps until a frame that hasn't been counted yet is done, instead of spinning on a core
+            if(!awaitNewFrames(1, FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                break;
+            }
             switch(currentCubePosition) {
-                case LEFT: left++;
-                case MIDDLE: middle++;
-                case RIGHT: right++;
-                case UNKNOWN: 
+                case LEFT: left++; break;
+                case MIDDLE: middle++; break;
+                case RIGHT: right++; break;
+                case UNKNOWN: break;
             }
-            while(currentFrame == frame) {}
+        }
+        if(left == 0 && middle == 0 && right == 0) {
+            return CubePosition.UNKNOWN;
         }
         if(left > middle) {
             if(left > right) {
@@ -0,0 +1,598 @@
+package org.BeehiveRobotics.RoverRuckusCV.Detectors;
+
+import org.BeehiveRobotics.RoverRuckusCV.BlobExtractor;
+import org.BeehiveRobotics.RoverRuckusCV.BlobList;
+import org.BeehiveRobotics.RoverRuckusCV.FrameRotation;
+import org.BeehiveRobotics.RoverRuckusCV.Overlay;
+import org.BeehiveRobotics.RoverRuckusCV.YuvColorTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.opencv.core.Scalar;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+import org.opencv.imgproc.Imgproc;
+
+//Finds the gold cube and the two silver balls in a frame, and which position the cube is in.
+//This is everything SampleDetector does to a frame, without the camera: it only uses plain Java and OpenCV, so it also
+//runs off the phone, e.g. on frames replayed from a recording. SampleDetector hands its frames to one of these.
+//
+//Each frame goes through begin, then convert -> threshold -> findContours -> classify, and then draw if it's shown.
+//The stages keep everything in the Frame, so different frames can be in different stages on different threads.
+public class SampleFinder {
+
+    // CALIBRATE THESE NUMBERS FOR YOUR TEAM
+    //Sizes are fractions of the whole frame's area, so they work at any resolution or processing scale.
+    //They were calibrated on a 640x480 frame, e.g. 6000 pixels is 6000 / (640 * 480) = 0.0195.
+    private final double MIN_BALL_SIZE = 0.0195;
+    private final double MAX_BALL_SIZE = 0.0391;
+    private final double MIN_CUBE_SIZE = 0.0163;
+    private final double MAX_CUBE_SIZE = 0.0326;
+
+    //These are hsv values. In that order. H, S, V.
+    //H is [0,179], both S and V are [0,255].
+    private final Scalar lowYellow  = new Scalar(16,  80,  60);
+    private final Scalar highYellow = new Scalar(32,  255, 255);
+    private final Scalar lowWhite   = new Scalar(0,   0,   225);
+    private final Scalar highWhite  = new Scalar(179, 100, 255);
+
+    //These are helpful for seeing what's going on. They're drawn by the display, only for frames that get shown
+    private boolean showContours   = true;
+    private boolean showRectangles = true;
+
+    //In our team, separation anxiety
+    //A fraction of the frame's shorter side, so it doesn't change when the phone is turned; 30 pixels on a 640x480 frame
+    private double THRESHOLD_Y_VALUE_FROM_CUBE = 0.0625;
+    private double THRESHOLD_SIDE_LENGTH_DIFFERENCE_ALLOWED = 0.2;
+
+    //Only this part of the frame gets searched, so a smaller region is faster. It can also be changed with setRegionOfInterest.
+    private double roiLeft   = 0;
+    private double roiTop    = 0;
+    private double roiWidth  = 1;
+    private double roiHeight = 1;
+    //END OF USER CALIBRATION
+
+
+    //These shouldn't need changing
+    public enum CubePosition {
+        LEFT, MIDDLE, RIGHT, UNKNOWN;
+    }
+
+    //The labels of the candidates from Frame.getCandidates
+    public static final int YELLOW = 0;
+    public static final int WHITE  = 1;
+
+    private Size blurSize = new Size(3, 3);
+
+    //ARGB, for the overlay
+    private static final int RED   = 0xFFFF0000;
+    private static final int GREEN = 0xFF00FF00;
+    private static final int CYAN  = 0xFF00FFFF;
+    private static final int BLUE  = 0xFF0000FF;
+
+    //The colour table labels yellow and white straight from the camera's YUV data, in one pass
+    private final Scalar[] colorTableLows  = {lowYellow, lowWhite};
+    private final Scalar[] colorTableHighs = {highYellow, highWhite};
+    private YuvColorTable colorTable;
+
+    //The blob extractor finds the yellow and white areas in plain Java instead of with findContours
+    private boolean useBlobExtractor = false;
+    private BlobExtractor blobExtractor;
+
+    //Everything one frame needs while it is being processed. Callers that process one frame at a time can reuse a
+    //single one of these; SampleDetector's pipelined mode passes a few of them between the stage threads.
+    public static class Frame {
+        private Mat rgba;
+        //Which camera frame this is, so results can tell how old they are
+        private long timestamp;
+        private long sequence;
+        //The size of the frame the thresholds are scaled to
+        private double frameArea;
+        private int frameWidth;
+        private int frameHeight;
+        //How many camera pixels make one processed pixel, i.e. the processing scale
+        private int step;
+        //How the display is turned, one of the FrameRotation.ROTATION_* values
+        private int rotation;
+        //The part of the frame that gets searched, in display coordinates
+        private final Rect roi = new Rect();
+        private final Point roiOffset = new Point();
+        //Kept between frames so a new submat isn't made every time; only remade when the frame or region changes
+        private Mat roiView;
+        private long roiViewData;
+        private final Rect roiViewRect = new Rect();
+        //keepInput copies the frame in here, for callers that reuse their Mat for the next frame
+        private final Mat input = new Mat();
+        private final Mat hsv = new Mat();
+        private final Mat hierarchy = new Mat();
+
+        //Only used with the colour table. These are all in the camera's orientation, not the display's
+        private boolean useColorTable;
+        private Mat raw;
+        //The camera's own NV21 bytes when it provides them, which saves copying them out of raw
+        private byte[] rawData;
+        private int rawWidth;
+        private int rawHeight;
+        private final Mat rawInput = new Mat();
+        private final Rect cameraRoi = new Rect();
+        private int cameraWidth;
+        private int cameraHeight;
+        private byte[] rawBytes = new byte[0];
+        private final byte[][] masks = new byte[2][0];
+        private final Mat yellowRaw = new Mat();
+        private final Mat whiteRaw  = new Mat();
+
+        private final Mat yellowThreshold = new Mat();
+        private final Mat whiteThreshold  = new Mat();
+        //What findContours works on: either the thresholds above, or the colour table masks if they didn't need rotating
+        private Mat yellowMask;
+        private Mat whiteMask;
+
+        //Only used with the blob extractor
+        private boolean useBlobExtractor;
+        private byte[] maskBytes = new byte[0];
+        private final Rect blobBox = new Rect();
+        private final Rect displayBox = new Rect();
+
+        private final ArrayList<MatOfPoint> yellowContours         = new ArrayList<MatOfPoint>();
+        private final ArrayList<MatOfPoint> whiteContours          = new ArrayList<MatOfPoint>();
+        private final ArrayList<MatOfPoint> yellowContoursFiltered = new ArrayList<MatOfPoint>();
+        private final ArrayList<MatOfPoint> whiteContoursFiltered  = new ArrayList<MatOfPoint>();
+
+        //Everything in the size range, then only the ones that are square enough and lined up with the others
+        private final BlobList yellowBoxes = new BlobList();
+        private final BlobList whiteBoxes  = new BlobList();
+        private final BlobList yellowRects = new BlobList();
+        private final BlobList whiteRects  = new BlobList();
+        private final BlobList candidates  = new BlobList();
+
+        //UNKNOWN if this frame didn't show exactly one cube and two balls
+        private CubePosition cubePosition = CubePosition.UNKNOWN;
+
+        //Copying each outline out of its MatOfPoint costs a JNI call, so they're only recorded if the display will draw them
+        private boolean overlayShown = true;
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        //Where classify put the cube, or UNKNOWN if it didn't find exactly one cube and two balls
+        public CubePosition getCubePosition() {
+            return cubePosition;
+        }
+
+        //The cubes and balls classify kept, at full resolution (see SampleDetector.getCandidates); reused for the next frame,
+        //so take a snapshot to keep them
+        public BlobList getCandidates() {
+            return candidates;
+        }
+
+        //Whether draw records the outlines, which costs a copy per contour; on unless it's turned off
+        public void setOverlayShown(boolean shown) {
+            overlayShown = shown;
+        }
+    }
+
+    public synchronized void showContours(boolean enabled) {
+        showContours = enabled;
+    }
+
+    public synchronized void showRectangles(boolean enabled) {
+        showRectangles = enabled;
+    }
+
+    //Sets the part of the frame that gets searched, as fractions of the frame's width and height (0 to 1).
+    //This takes effect from the next frame passed to begin.
+    public synchronized void setRegionOfInterest(double left, double top, double width, double height) {
+        roiLeft = left;
+        roiTop = top;
+        roiWidth = width;
+        roiHeight = height;
+    }
+
+    //The blob extractor replaces findContours, contourArea and boundingRect with a single pass over each mask.
+    //Its sizes are pixel counts rather than outline areas, so they come out slightly bigger; no outlines get drawn.
+    //This takes effect from the next frame passed to begin.
+    public synchronized void setBlobExtractorEnabled(boolean enabled) {
+        useBlobExtractor = enabled;
+    }
+
+    //The colour table skips the RGBA and HSV conversions and both inRange passes, for frames given to setRaw.
+    //It has to be set before the first of those frames.
+    public void setColorTable(YuvColorTable table) {
+        colorTable = table;
+    }
+
+    public YuvColorTable getColorTable() {
+        return colorTable;
+    }
+
+    //Builds the colour table from the HSV ranges above
+    public YuvColorTable buildColorTable() {
+        return YuvColorTable.build(colorTableLows, colorTableHighs);
+    }
+
+    //Memory-maps a colour table saved from buildColorTable, or returns null if there isn't one or the ranges changed since
+    public YuvColorTable loadColorTable(File file) throws IOException {
+        return YuvColorTable.load(file, colorTableLows, colorTableHighs);
+    }
+
+    //Stops the blob extractor's threads. Only call this once no frame is being processed; it's started again if needed.
+    public void shutdown() {
+        if (blobExtractor != null) {
+            blobExtractor.shutdown();
+            blobExtractor = null;
+        }
+    }
+
+    //Gets a frame ready to go through the stages.
+    //rgba is the frame in the display's orientation, at the processing scale; it's used until the frame is drawn, so
+    //call keepInput if it will change before then. step is the processing scale, and rotation how the display is
+    //turned, one of the FrameRotation.ROTATION_* values.
+    public void begin(Frame frame, Mat rgba, int step, int rotation, long timestamp, long sequence) {
+        setRegion(frame, rgba.cols(), rgba.rows(), step);
+        frame.rgba = rgba;
+        frame.rotation = rotation;
+        frame.timestamp = timestamp;
+        frame.sequence = sequence;
+        frame.useColorTable = false;
+        frame.raw = null;
+        frame.rawData = null;
+    }
+
+    //Labels the frame with the colour table, straight from the camera's NV21 data, instead of converting rgba.
+    //rawData is the camera's bytes, or null to use raw instead; both are in the camera's orientation, never shrunk,
+    //width by height pixels.
+    public void setRaw(Frame frame, byte[] rawData, Mat raw, int width, int height) {
+        if (colorTable == null) throw new IllegalStateException("setColorTable() needs to be called before frames can be labelled with it!");
+        frame.useColorTable = true;
+        frame.rawData = rawData;
+        frame.raw = rawData == null ? raw : null;
+        frame.rawWidth = width;
+        frame.rawHeight = height;
+    }
+
+    //Copies whatever the frame is read from into the frame itself, for when the camera's Mats and bytes are reused
+    //before the frame gets through the stages, e.g. when pipelined
+    public void keepInput(Frame frame) {
+        if (frame.useColorTable) {
+            if (frame.rawData != null) {
+                if (frame.rawBytes.length != frame.rawData.length) frame.rawBytes = new byte[frame.rawData.length];
+                System.arraycopy(frame.rawData, 0, frame.rawBytes, 0, frame.rawData.length);
+                frame.rawData = frame.rawBytes;
+            } else {
+                frame.raw.copyTo(frame.rawInput);
+                frame.raw = frame.rawInput;
+            }
+        } else {
+            frame.rgba.copyTo(frame.input);
+            frame.rgba = frame.input;
+        }
+    }
+
+    //Runs every stage on the frame, on the calling thread
+    public void process(Frame frame) {
+        convert(frame);
+        threshold(frame);
+        findContours(frame);
+        classify(frame);
+    }
+
+    //Works out this frame's region of interest in pixels, kept inside the frame, and the size the thresholds are scaled to
+    private synchronized void setRegion(Frame frame, int width, int height, int step) {
+        frame.frameArea = (double) width * height;
+        frame.frameWidth = width;
+        frame.frameHeight = height;
+        frame.step = step;
+        frame.useBlobExtractor = useBlobExtractor;
+        int left = (int) Math.round(Math.max(0, Math.min(1, roiLeft)) * width);
+        int top = (int) Math.round(Math.max(0, Math.min(1, roiTop)) * height);
+        frame.roi.x = left;
+        frame.roi.y = top;
+        frame.roi.width = Math.max(1, Math.min(width - left, (int) Math.round(roiWidth * width)));
+        frame.roi.height = Math.max(1, Math.min(height - top, (int) Math.round(roiHeight * height)));
+        frame.roiOffset.x = frame.roi.x;
+        frame.roiOffset.y = frame.roi.y;
+    }
+
+    //A view of just the region of interest; no pixels are copied
+    private static Mat regionView(Frame frame, Mat mat) {
+        if (frame.roiView == null || frame.roiViewData != mat.dataAddr() || !frame.roiViewRect.equals(frame.roi)) {
+            if (frame.roiView != null) frame.roiView.release();
+            frame.roiView = mat.submat(frame.roi);
+            frame.roiViewData = mat.dataAddr();
+            frame.roiViewRect.x = frame.roi.x;
+            frame.roiViewRect.y = frame.roi.y;
+            frame.roiViewRect.width = frame.roi.width;
+            frame.roiViewRect.height = frame.roi.height;
+        }
+        return frame.roiView;
+    }
+
+    public void convert(Frame frame) {
+        if (frame.useColorTable) {
+            label(frame);
+            return;
+        }
+        //Convert RGB to HSV, only in the region of interest
+        Imgproc.cvtColor(regionView(frame, frame.rgba), frame.hsv, Imgproc.COLOR_RGB2HSV, 3);
+    }
+
+    //Labels yellow and white with the colour table in one pass over the raw NV21 frame
+    private void label(Frame frame) {
+        int width = frame.rawWidth;
+        int height = frame.rawHeight;
+        //The raw frame is never shrunk, so when processing at a lower resolution only every step-th pixel is labelled
+        int step = frame.step;
+        //The raw frame isn't rotated for the display, so the region of interest has to be turned to match it
+        frame.cameraWidth = width / step;
+        frame.cameraHeight = height / step;
+        Rect region = FrameRotation.displayRectToCamera(frame.roi, frame.cameraWidth, frame.cameraHeight, frame.cameraRoi, frame.rotation);
+        int regionSize = region.width * region.height;
+        for (int i = 0; i < frame.masks.length; i++) {
+            if (frame.masks[i].length != regionSize) frame.masks[i] = new byte[regionSize];
+        }
+        byte[] nv21 = frame.rawData;
+        if (nv21 == null) {
+            //Only frames that aren't backed by a byte array (camera2, replays) need copying out of the Mat
+            Mat raw = frame.raw;
+            if (frame.rawBytes.length != (int) raw.total()) frame.rawBytes = new byte[(int) raw.total()];
+            raw.get(0, 0, frame.rawBytes);
+            nv21 = frame.rawBytes;
+        }
+
+        colorTable.classify(nv21, width, height, region.x * step, region.y * step, region.width, region.height, step, frame.masks);
+        //The blob extractor works on the byte arrays directly, so the masks don't need to become Mats
+        if (frame.useBlobExtractor) return;
+
+        frame.yellowRaw.create(region.height, region.width, CvType.CV_8UC1);
+        frame.whiteRaw.create(region.height, region.width, CvType.CV_8UC1);
+        frame.yellowRaw.put(0, 0, frame.masks[0]);
+        frame.whiteRaw.put(0, 0, frame.masks[1]);
+    }
+
+    public void threshold(Frame frame) {
+        if (frame.useColorTable) {
+            if (frame.useBlobExtractor) return;
+            //The masks are already done, they just need to be turned the same way as the display
+            frame.yellowMask = FrameRotation.rotateToDisplay(frame.yellowRaw, frame.yellowThreshold, frame.rotation);
+            frame.whiteMask = FrameRotation.rotateToDisplay(frame.whiteRaw, frame.whiteThreshold, frame.rotation);
+            return;
+        }
+        //Find everything in a range of HSV values. H is [0, 179], S is [0,255], V is [0,255].
+        //This numbers may need to be changed depending on lighting, camera, etc.
+        //First is yellow, second is white
+        //The numbers were calibrated from a Nexus 5 phone, in the lighting at our school.
+        Core.inRange(frame.hsv, lowYellow, highYellow, frame.yellowThreshold);
+        Core.inRange(frame.hsv, lowWhite, highWhite, frame.whiteThreshold);
+        frame.yellowMask = frame.yellowThreshold;
+        frame.whiteMask = frame.whiteThreshold;
+
+        // Blur the image to remove noise, and put the overall shape together
+        //Imgproc.blur(frame.yellowThreshold, frame.yellowThreshold, blurSize);
+        //Imgproc.blur(frame.whiteThreshold, frame.whiteThreshold, blurSize);
+    }
+
+    public void findContours(Frame frame) {
+        // Clear all lists
+        frame.yellowContours.clear();
+        frame.whiteContours.clear();
+
+        if (frame.useBlobExtractor) {
+            extractBlobs(frame);
+            return;
+        }
+
+        // Fills contour list with outlines of yellow and white
+        // The masks only cover the region of interest, so the offset moves the contours back to where they are in the whole frame
+        Imgproc.findContours(frame.yellowMask, frame.yellowContours, frame.hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE, frame.roiOffset);
+        Imgproc.findContours(frame.whiteMask, frame.whiteContours, frame.hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE, frame.roiOffset);
+        filterContours(frame);
+    }
+
+    //Keeps the contours findContours found that are in the size range, and their bounding boxes
+    public void filterContours(Frame frame) {
+        clearFiltered(frame);
+
+        //For some reason if you use a foreach (AKA enhanced for loop) here it throws a ConcurrentModificationException
+        for(int i = 0; i < frame.yellowContours.size(); i++) {
+            MatOfPoint contour = frame.yellowContours.get(i);
+            double area = Math.abs(Imgproc.contourArea(contour));
+            if(area > MIN_CUBE_SIZE * frame.frameArea && area < MAX_CUBE_SIZE * frame.frameArea) {
+                frame.yellowContoursFiltered.add(contour);
+                Rect box = Imgproc.boundingRect(contour);
+                frame.yellowBoxes.add(box.x, box.y, box.width, box.height, (int) area, YELLOW);
+            }
+        }
+        for(int i = 0; i < frame.whiteContours.size(); i++) {
+            MatOfPoint contour = frame.whiteContours.get(i);
+            double area = Math.abs(Imgproc.contourArea(contour));
+            if(area > MIN_BALL_SIZE * frame.frameArea && area < MAX_BALL_SIZE * frame.frameArea) {
+                frame.whiteContoursFiltered.add(contour);
+                Rect box = Imgproc.boundingRect(contour);
+                frame.whiteBoxes.add(box.x, box.y, box.width, box.height, (int) area, WHITE);
+            }
+        }
+    }
+
+    private static void clearFiltered(Frame frame) {
+        frame.yellowContoursFiltered.clear();
+        frame.whiteContoursFiltered.clear();
+        frame.yellowBoxes.clear();
+        frame.whiteBoxes.clear();
+    }
+
+    private void extractBlobs(Frame frame) {
+        clearFiltered(frame);
+        if (blobExtractor == null) {
+            blobExtractor = new BlobExtractor(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        }
+        if (frame.useColorTable) {
+            //The colour table masks are still in the camera's orientation, so the boxes get turned instead of the masks
+            Rect region = frame.cameraRoi;
+            blobExtractor.extract(frame.masks[0], region.width, region.height);
+            filterBlobs(frame, blobExtractor, YELLOW);
+            blobExtractor.extract(frame.masks[1], region.width, region.height);
+            filterBlobs(frame, blobExtractor, WHITE);
+            return;
+        }
+        blobExtractor.extract(maskBytes(frame, frame.yellowMask), frame.yellowMask.cols(), frame.yellowMask.rows());
+        filterBlobs(frame, blobExtractor, YELLOW);
+        blobExtractor.extract(maskBytes(frame, frame.whiteMask), frame.whiteMask.cols(), frame.whiteMask.rows());
+        filterBlobs(frame, blobExtractor, WHITE);
+    }
+
+    private static byte[] maskBytes(Frame frame, Mat mask) {
+        if (frame.maskBytes.length != (int) mask.total()) frame.maskBytes = new byte[(int) mask.total()];
+        mask.get(0, 0, frame.maskBytes);
+        return frame.maskBytes;
+    }
+
+    //Keeps the bounding box of every blob the extractor last found that is in the size range for label (YELLOW or WHITE),
+    //in the same coordinates findContours would give, in place of that label's boxes from before
+    public void filterBlobs(Frame frame, BlobExtractor extractor, int label) {
+        double minSize = label == YELLOW ? MIN_CUBE_SIZE : MIN_BALL_SIZE;
+        double maxSize = label == YELLOW ? MAX_CUBE_SIZE : MAX_BALL_SIZE;
+        BlobList boxes = label == YELLOW ? frame.yellowBoxes : frame.whiteBoxes;
+        boxes.clear();
+        int count = extractor.getCount();
+        int[] areas = extractor.getAreas();
+        int[] lefts = extractor.getLefts();
+        int[] tops = extractor.getTops();
+        int[] widths = extractor.getWidths();
+        int[] heights = extractor.getHeights();
+        Rect blob = frame.blobBox;
+        for(int i = 0; i < count; i++) {
+            if(areas[i] <= minSize * frame.frameArea || areas[i] >= maxSize * frame.frameArea) continue;
+            if(frame.useColorTable) {
+                blob.x = frame.cameraRoi.x + lefts[i];
+                blob.y = frame.cameraRoi.y + tops[i];
+                blob.width = widths[i];
+                blob.height = heights[i];
+                FrameRotation.cameraRectToDisplay(blob, frame.cameraWidth, frame.cameraHeight, frame.displayBox, frame.rotation);
+                boxes.add(frame.displayBox.x, frame.displayBox.y, frame.displayBox.width, frame.displayBox.height, areas[i], label);
+            } else {
+                boxes.add(frame.roi.x + lefts[i], frame.roi.y + tops[i], widths[i], heights[i], areas[i], label);
+            }
+        }
+    }
+
+    public void classify(Frame frame) {
+        BlobList yellowRects = frame.yellowRects;
+        BlobList whiteRects = frame.whiteRects;
+        yellowRects.clear();
+        whiteRects.clear();
+
+        keepSquare(frame.yellowBoxes, yellowRects);
+        keepSquare(frame.whiteBoxes, whiteRects);
+
+        //Start filtering contours based on others positions
+        //Both loops go backwards, so removing a blob doesn't skip the one that moves into its place
+        final double yThreshold = THRESHOLD_Y_VALUE_FROM_CUBE * Math.min(frame.frameWidth, frame.frameHeight);
+        if(yellowRects.size()==1 && whiteRects.size()!=0) {
+            final int yellowY = yellowRects.getY(0);
+            for(int i = whiteRects.size() - 1; i >= 0; i--) {
+                if(Math.abs(whiteRects.getY(i) - yellowY) > yThreshold) {
+                    whiteRects.remove(i);
+                }
+            }
+
+        }
+        if(whiteRects.size() == 2 && yellowRects.size() != 0) {
+            final double yAverage = (whiteRects.getY(0) + whiteRects.getY(1)) / 2;
+            for(int i = yellowRects.size() - 1; i >= 0; i--) {
+                if(Math.abs(yAverage - yellowRects.getY(i)) > yThreshold) {
+                    yellowRects.remove(i);
+                }
+
+            }
+        }
+
+        frame.cubePosition = CubePosition.UNKNOWN;
+        if(yellowRects.size() == 1 && whiteRects.size() == 2) {
+            if(yellowRects.getX(0) < whiteRects.getX(0)) {
+                if(yellowRects.getX(0) < whiteRects.getX(1)) {
+                    frame.cubePosition = CubePosition.LEFT;
+                } else {
+                    frame.cubePosition = CubePosition.MIDDLE;
+                }
+            } else {
+                if(yellowRects.getX(0) > whiteRects.getX(1)) {
+                    frame.cubePosition = CubePosition.RIGHT;
+                } else {
+                    frame.cubePosition = CubePosition.MIDDLE;
+                }
+            }
+        }
+
+        //The candidates are handed out at full resolution, so they don't change with the processing scale
+        frame.candidates.clear();
+        addScaled(yellowRects, frame.step, frame.candidates);
+        addScaled(whiteRects, frame.step, frame.candidates);
+    }
+
+    //Copies the boxes whose sides are close enough to equal
+    private void keepSquare(BlobList boxes, BlobList result) {
+        for(int i = 0; i < boxes.size(); i++) {
+            double w = boxes.getWidth(i);
+            double h = boxes.getHeight(i);
+
+            double sideRatio = w/h;
+
+            if(Math.abs(sideRatio - 1) < THRESHOLD_SIDE_LENGTH_DIFFERENCE_ALLOWED) {
+                result.add(boxes.getX(i), boxes.getY(i), boxes.getWidth(i), boxes.getHeight(i), boxes.getArea(i), boxes.getLabel(i));
+            }
+        }
+    }
+
+    //Copies the boxes, multiplying their sides by scale and their areas by its square
+    private static void addScaled(BlobList boxes, int scale, BlobList result) {
+        for(int i = 0; i < boxes.size(); i++) {
+            result.add(boxes.getX(i) * scale, boxes.getY(i) * scale, boxes.getWidth(i) * scale, boxes.getHeight(i) * scale,
+                    boxes.getArea(i) * scale * scale, boxes.getLabel(i));
+        }
+    }
+
+    //Records what to draw over this frame; the display does the actual drawing, and only if the frame gets shown.
+    //Unlike the candidates, this is in the coordinates of the processed frame, which the display stretches to fit.
+    public synchronized void draw(Frame frame, Overlay overlay) {
+        overlay.begin(frame.frameWidth, frame.frameHeight);
+        if(showRectangles) {
+            overlay.box(frame.roi.x, frame.roi.y, frame.roi.width, frame.roi.height, GREEN, 1);
+            drawBoxes(overlay, frame.yellowBoxes, BLUE);
+            drawBoxes(overlay, frame.whiteBoxes, RED);
+        }
+        if(frame.cubePosition != CubePosition.UNKNOWN) {
+            overlay.text(frame.cubePosition.toString(), 30, 30, CYAN, 22);
+        }
+        if(showContours && frame.overlayShown) {
+            // Draws the outlines of the yellow over the image on the screen. Colored blue.
+            for(int i = 0; i < frame.yellowContoursFiltered.size(); i++) {
+                overlay.polyline(frame.yellowContoursFiltered.get(i), true, BLUE, 2);
+            }
+            // Draws the outlines of the white over the image on the screen. Colored red.
+            for(int i = 0; i < frame.whiteContoursFiltered.size(); i++) {
+                overlay.polyline(frame.whiteContoursFiltered.get(i), true, RED, 2);
+            }
+        }
+        overlay.commit();
+    }
+
+    private static void drawBoxes(Overlay overlay, BlobList boxes, int color) {
+        for(int i = 0; i < boxes.size(); i++) {
+            overlay.box(boxes.getX(i), boxes.getY(i), boxes.getWidth(i), boxes.getHeight(i), color, 1);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw NV21 camera frames to a file that {@link ReplayFrameSource} can play back later, e.g. on a laptop.
+ * Hand one to {@link OpenCVPipeline#setFrameRecorder(FrameRecorder)} to record everything the camera sees.
+ * Each frame takes width*height*3/2 bytes, so keep recordings short.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class FrameRecorder {
+    private final FileOutputStream os;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final byte[] data;
+    private final ByteBuffer timestamp = ByteBuffer.allocate(ReplayFrameSource.TIMESTAMP_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private long frames = 0;
+
+    /**
+     * @param file where to record to; it's overwritten if it exists
+     * @param width the width of the frames, in the camera's orientation
+     * @param height the height of the frames, in the camera's orientation
+     * @throws IOException if the file can't be written
+     */
+    public FrameRecorder(File file, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        data = new byte[width * height * 3 / 2];
+        os = new FileOutputStream(file);
+        channel = os.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(ReplayFrameSource.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(ReplayFrameSource.MAGIC).putInt(ReplayFrameSource.VERSION).putInt(width).putInt(height).flip();
+        try {
+            while (header.hasRemaining()) channel.write(header);
+        } catch (IOException e) {
+            os.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a frame to the recording.
+     * @param yuv the frame as the camera captured it, see {@link CameraFrame#yuv()}
+     * @param timestampNanos when the frame was captured, in System.nanoTime() time, e.g. from {@link CameraFrame#timestamp()}
+     * @throws IOException if the frame can't be written
+     * @throws IllegalArgumentException if the frame isn't the size the recording was started with
+     */
+    public synchronized void record(Mat yuv, long timestampNanos) throws IOException {
+        if (yuv.cols() != width || yuv.rows() != height * 3 / 2) {
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " NV21 frame, got " + yuv.cols() + "x" + yuv.rows());
+        }
+        yuv.get(0, 0, data);
+        timestamp.clear();
+        timestamp.putLong(timestampNanos).flip();
+        while (timestamp.hasRemaining()) channel.write(timestamp);
+        ByteBuffer pixels = ByteBuffer.wrap(data);
+        while (pixels.hasRemaining()) channel.write(pixels);
+        frames++;
+    }
+
+    /**
+     * @return the number of frames recorded so far
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Finishes the recording.
+     * @throws IOException if the file can't be closed
+     */
+    public synchronized void close() throws IOException {
+        os.close();
+    }
+}
@@ -0,0 +1,54 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands every frame of a {@link FrameSource} to a listener, either as fast as the listener takes them or as far apart
+ * as they were recorded. {@link OpenCVPipeline#replay(FrameSource, boolean)} uses this to run a pipeline on recorded
+ * frames; off the phone, a listener can hand the frames to a detector's own stages instead, e.g. to time it on a laptop.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class FrameReplayer {
+    /**
+     * Gets the frames being replayed, on the thread that called {@link #replay(FrameSource, boolean, Listener)}.
+     */
+    public interface Listener {
+        /**
+         * @param frame the next frame; it must not be used after this returns
+         */
+        void onFrame(CameraFrame frame);
+    }
+
+    private FrameReplayer() {
+    }
+
+    /**
+     * Runs on the calling thread until the source runs out of frames. The source isn't closed afterwards.
+     * @param source where to get the frames from
+     * @param realTime true to deliver frames as far apart as they were recorded, false to deliver them as fast as
+     *                 the listener can take them (to measure throughput)
+     * @param listener what to hand the frames to
+     * @return the number of frames delivered
+     * @throws IOException if the source can't be read
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public static long replay(FrameSource source, boolean realTime, Listener listener) throws IOException, InterruptedException {
+        long frames = 0;
+        long firstTimestamp = 0;
+        long start = System.nanoTime();
+        CameraFrame frame;
+        while ((frame = source.nextFrame()) != null) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (frames == 0) firstTimestamp = source.getTimestamp();
+            if (realTime) {
+                long wait = (source.getTimestamp() - firstTimestamp) - (System.nanoTime() - start);
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            listener.onFrame(frame);
+            frames++;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,136 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Turns frames and rectangles between the camera's orientation and the display's, for OpenCVPipeline.
+ * Rotations are the values of android.view.Surface.ROTATION_*, but nothing here needs Android, so it also runs off
+ * the phone. Every method writes into Mats and Rects the caller keeps, so none of them allocate per frame.
+ * <p>
+ * ROTATION_180, an upside-down portrait display, is treated like ROTATION_90 and leaves frames as they were captured.
+ * Android doesn't turn the display upside down unless the app asks for it, which the FTC apps don't, so phones never
+ * report it; the pipeline this came from had no case for it either. Passing the frame through keeps processFrame
+ * working with a landscape frame instead of guessing at a turn nobody has been able to check on a phone.
+ */
+public class FrameRotation {
+    // The same values as android.view.Surface
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    // An empty size tells Imgproc.resize to use its scale factors instead
+    private static final Size SCALE_BY_FACTOR = new Size();
+
+    private FrameRotation() {
+    }
+
+    /**
+     * Shrinks a frame and then rotates it for the display.
+     * @param input the frame in camera orientation, or null
+     * @param scaled where to put the shrunk frame; only used if scale is more than 1
+     * @param rotated where to put the rotated frame
+     * @param scale 1 to keep the frame's size, 2 for half the width and height, and so on
+     * @param rotation the display's rotation
+     * @return the frame in display orientation, which is one of input, scaled or rotated; null if input is
+     */
+    public static Mat toDisplay(Mat input, Mat scaled, Mat rotated, int scale, int rotation) {
+        if (input == null) return null;
+        if (scale > 1) {
+            // shrinking before rotating leaves the rotation fewer pixels to move
+            double factor = 1.0 / scale;
+            Imgproc.resize(input, scaled, SCALE_BY_FACTOR, factor, factor, Imgproc.INTER_AREA);
+            input = scaled;
+        }
+        return rotateToDisplay(input, rotated, rotation);
+    }
+
+    /**
+     * @param src the Mat in camera orientation
+     * @param dst where to put the rotated Mat; Core.rotate only reallocates it if the frame size changes
+     * @param rotation the display's rotation
+     * @return dst, or src itself if the display doesn't need the frame rotated
+     */
+    public static Mat rotateToDisplay(Mat src, Mat dst, int rotation) {
+        switch (rotation) {
+            case ROTATION_0:
+                // this breaks horribly for some reason
+                Core.rotate(src, dst, Core.ROTATE_90_CLOCKWISE);
+                return dst;
+            case ROTATION_270:
+                Core.rotate(src, dst, Core.ROTATE_180);
+                return dst;
+        }
+        // ROTATION_90: the frame is already the right way up, so it can be used directly;
+        // ROTATION_180 never happens in practice (see above) and is left alone too
+        return src;
+    }
+
+    /**
+     * The opposite of {@link #cameraRectToDisplay(Rect, int, int, Rect, int)}.
+     * @param rect the rectangle in display orientation
+     * @param cameraWidth the width of the frame in camera orientation
+     * @param cameraHeight the height of the frame in camera orientation
+     * @param result where to put the rectangle in camera orientation
+     * @param rotation the display's rotation
+     * @return result
+     */
+    public static Rect displayRectToCamera(Rect rect, int cameraWidth, int cameraHeight, Rect result, int rotation) {
+        switch (rotation) {
+            case ROTATION_0:
+                // undoes a 90 degree clockwise turn
+                result.x = rect.y;
+                result.y = cameraHeight - rect.x - rect.width;
+                result.width = rect.height;
+                result.height = rect.width;
+                return result;
+            case ROTATION_270:
+                result.x = cameraWidth - rect.x - rect.width;
+                result.y = cameraHeight - rect.y - rect.height;
+                result.width = rect.width;
+                result.height = rect.height;
+                return result;
+        }
+        result.x = rect.x;
+        result.y = rect.y;
+        result.width = rect.width;
+        result.height = rect.height;
+        return result;
+    }
+
+    /**
+     * Turns a rectangle on the camera's frame the same way {@link #rotateToDisplay(Mat, Mat, int)} turns a Mat.
+     * @param rect the rectangle in camera orientation
+     * @param cameraWidth the width of the frame in camera orientation
+     * @param cameraHeight the height of the frame in camera orientation
+     * @param result where to put the rectangle in display orientation; must not be rect
+     * @param rotation the display's rotation
+     * @return result
+     */
+    public static Rect cameraRectToDisplay(Rect rect, int cameraWidth, int cameraHeight, Rect result, int rotation) {
+        switch (rotation) {
+            case ROTATION_0:
+                // a 90 degree clockwise turn
+                result.x = cameraHeight - rect.y - rect.height;
+                result.y = rect.x;
+                result.width = rect.height;
+                result.height = rect.width;
+                return result;
+            case ROTATION_270:
+                result.x = cameraWidth - rect.x - rect.width;
+                result.y = cameraHeight - rect.y - rect.height;
+                result.width = rect.width;
+                result.height = rect.height;
+                return result;
+        }
+        result.x = rect.x;
+        result.y = rect.y;
+        result.width = rect.width;
+        result.height = rect.height;
+        return result;
+    }
+}
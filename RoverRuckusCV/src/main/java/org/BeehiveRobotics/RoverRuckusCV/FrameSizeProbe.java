@@ -0,0 +1,80 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Size;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long processFrame takes per frame, so OpenCVPipeline can pick the camera frame size from a frame
+ * rate target instead of always using the biggest one that fits the screen.
+ * Processing time is assumed to grow with the number of pixels, so one measurement at the current size predicts the
+ * time at every other size; the pipeline measures again after switching, in case that isn't quite true.
+ */
+class FrameSizeProbe {
+    // Aspect ratios closer than this count as the same, so switching sizes doesn't change what the camera sees
+    private static final double ASPECT_TOLERANCE = 0.01;
+
+    private long frames; // guarded by this
+    private long nanos; // guarded by this
+
+    /**
+     * Records the time one frame took; called from whichever thread runs processFrame.
+     */
+    synchronized void record(long frameNanos) {
+        frames++;
+        nanos += frameNanos;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the next few frames to be processed and returns how long they took on average.
+     * @param warmup frames to skip first, e.g. ones still from before the camera restarted, or ones slowed down by
+     *               the JIT and freshly allocated Mats
+     * @param count frames to average over
+     * @param timeout the longest time to wait for all of them
+     * @param unit the unit of timeout
+     * @return the mean time per frame in nanoseconds, or -1 if the timeout ran out first
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    synchronized double measure(int warmup, int count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!await(frames + warmup, deadline)) return -1;
+        long startFrames = frames;
+        long startNanos = nanos;
+        if (!await(startFrames + count, deadline)) return -1;
+        return (nanos - startNanos) / (double) (frames - startFrames);
+    }
+
+    private boolean await(long target, long deadline) throws InterruptedException {
+        while (frames < target) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Picks the biggest size that should still be processed within the frame budget.
+     * @param sizes the sizes the camera supports
+     * @param current the size the frame time was measured at
+     * @param frameNanos the measured time per frame at the current size
+     * @param targetFrameRate the frame rate to aim for, in frames per second
+     * @return the biggest size with the same aspect ratio as current that fits the budget, or the smallest one with
+     *         that aspect ratio if none does
+     */
+    static Size choose(List<Size> sizes, Size current, double frameNanos, double targetFrameRate) {
+        double nanosPerPixel = frameNanos / current.area();
+        double budget = TimeUnit.SECONDS.toNanos(1) / targetFrameRate;
+        double aspect = current.width / current.height;
+        Size best = null;
+        Size smallest = current;
+        for (Size size : sizes) {
+            if (Math.abs(size.width / size.height - aspect) > ASPECT_TOLERANCE * aspect) continue;
+            if (size.area() < smallest.area()) smallest = size;
+            if (nanosPerPixel * size.area() <= budget && (best == null || size.area() > best.area())) best = size;
+        }
+        return best != null ? best : smallest;
+    }
+}
@@ -0,0 +1,41 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.io.IOException;
+
+/**
+ * Somewhere frames come from other than a live camera, e.g. a recording played back with {@link ReplayFrameSource}.
+ * Frames are handed to a pipeline with {@link OpenCVPipeline#replay(FrameSource, boolean)}, or to anything else with
+ * {@link FrameReplayer}, so a detector can be run and timed without a phone.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public interface FrameSource {
+    /**
+     * @return the width of the frames, in the camera's orientation
+     */
+    int getWidth();
+
+    /**
+     * @return the height of the frames, in the camera's orientation
+     */
+    int getHeight();
+
+    /**
+     * Moves on to the next frame. The frame returned by the previous call must not be used after this.
+     * @return the next frame, or null if there are no more
+     * @throws IOException if the frame can't be read
+     */
+    CameraFrame nextFrame() throws IOException;
+
+    /**
+     * @return when the frame last returned by {@link #nextFrame()} was captured, in nanoseconds; only differences
+     *         between timestamps mean anything
+     */
+    long getTimestamp();
+
+    /**
+     * Releases the frames and whatever the source reads from.
+     * @throws IOException if the source can't be closed
+     */
+    void close() throws IOException;
+}
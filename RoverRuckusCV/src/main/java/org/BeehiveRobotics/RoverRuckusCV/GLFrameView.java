@@ -0,0 +1,281 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Draws frames with OpenGL ES 2 instead of converting them to a Bitmap and drawing that on a Canvas.
+ * {@link #submit(Mat, int)} only copies the frame's pixels into a direct buffer; the GL thread uploads them as a
+ * texture, and the GPU rotates, scales and letterboxes them. Utils.matToBitmap and the software scaling in
+ * Canvas.drawBitmap no longer run on the thread that processes frames.
+ *
+ * Frames can have 4 channels (RGBA, like the Mat processFrame returns), 3 channels or 1 channel. A single
+ * channel, e.g. just the Y plane of a camera frame, is a quarter of the bytes to copy and upload, and is drawn in gray.
+ *
+ * Frames are handed over through a {@link LatestFrameMailbox}, so submitting never waits for the GL thread and the
+ * GL thread only uploads the newest frame. Only one thread may submit frames.
+ */
+public class GLFrameView extends GLSurfaceView implements GLSurfaceView.Renderer {
+    private static final String TAG = "GLFrameView";
+
+    private static final String VERTEX_SHADER = ""
+            + "attribute vec2 vPosition;\n"
+            + "attribute vec2 vTexCoord;\n"
+            + "varying vec2 texCoord;\n"
+            + "void main() {\n"
+            + "  texCoord = vTexCoord;\n"
+            + "  gl_Position = vec4(vPosition, 0.0, 1.0);\n"
+            + "}";
+
+    // luminance textures are sampled as (L, L, L, 1), so the same shader draws every kind of frame
+    private static final String FRAGMENT_SHADER = ""
+            + "precision mediump float;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "varying vec2 texCoord;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, texCoord);\n"
+            + "}";
+
+    private static final float[] VERTICES = {
+            -1, -1,
+            -1,  1,
+             1, -1,
+             1,  1 };
+
+    private final FloatBuffer vertices = floatBuffer(VERTICES);
+    // The texture coordinates for each number of clockwise quarter turns
+    private final FloatBuffer[] texCoords = new FloatBuffer[4];
+
+    private final LatestFrameMailbox<FrameBuffer> mailbox =
+            new LatestFrameMailbox<>(new FrameBuffer[] { new FrameBuffer(), new FrameBuffer(), new FrameBuffer() });
+
+    // Only touched on the GL thread
+    private FrameBuffer current; // the frame being shown, kept to upload again if the GL context is lost
+    private boolean uploaded;
+    private int program = -1;
+    private int vPosition;
+    private int vTexCoord;
+    private final int[] texture = { 0 };
+    private int textureWidth = -1;
+    private int textureHeight = -1;
+    private int textureFormat = -1;
+    private int viewWidth;
+    private int viewHeight;
+
+    public GLFrameView(Context context) {
+        super(context);
+        for (int turns = 0; turns < 4; turns++) texCoords[turns] = floatBuffer(texCoords(turns));
+        setEGLContextClientVersion(2);
+        setRenderer(this);
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        // without this, the view would be hidden behind the camera view, which is also a SurfaceView
+        setZOrderMediaOverlay(true);
+    }
+
+    /**
+     * Hands a frame to the GL thread to be drawn. The frame is copied, so it can be changed as soon as this returns.
+     * @param frame an 8 bit frame with 1, 3 or 4 channels
+     * @param quarterTurns how many times to turn the frame clockwise by 90 degrees before drawing it
+     */
+    public void submit(Mat frame, int quarterTurns) {
+        int channels = frame.channels();
+        if (frame.depth() != CvType.CV_8U || (channels != 1 && channels != 3 && channels != 4))
+            throw new IllegalArgumentException("GLFrameView can only draw 8 bit frames with 1, 3 or 4 channels!");
+        FrameBuffer buffer = mailbox.producerSlot();
+        buffer.ensure(frame.cols(), frame.rows(), channels);
+        // the buffer's Mat has the same size and type, so this copies into the direct buffer instead of reallocating
+        frame.copyTo(buffer.mat);
+        publish(buffer, quarterTurns);
+    }
+
+    /**
+     * Hands the Y plane of an NV21 frame to the GL thread to be drawn in gray, straight from the camera's bytes.
+     * @param nv21 the frame; only the first width*height bytes are used
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param quarterTurns how many times to turn the frame clockwise by 90 degrees before drawing it
+     */
+    public void submitLuma(byte[] nv21, int width, int height, int quarterTurns) {
+        FrameBuffer buffer = mailbox.producerSlot();
+        buffer.ensure(width, height, 1);
+        buffer.pixels.clear();
+        buffer.pixels.put(nv21, 0, width * height);
+        publish(buffer, quarterTurns);
+    }
+
+    private void publish(FrameBuffer buffer, int quarterTurns) {
+        buffer.turns = quarterTurns & 3;
+        mailbox.publish();
+        requestRender();
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        // a new context has none of the old one's objects
+        program = loadProgram();
+        vPosition = GLES20.glGetAttribLocation(program, "vPosition");
+        vTexCoord = GLES20.glGetAttribLocation(program, "vTexCoord");
+        GLES20.glGenTextures(1, texture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        // rows of 1 and 3 channel frames aren't always a multiple of 4 bytes long
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glClearColor(0, 0, 0, 1);
+        textureWidth = textureHeight = textureFormat = -1;
+        uploaded = false;
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height) {
+        viewWidth = width;
+        viewHeight = height;
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl) {
+        FrameBuffer latest = mailbox.poll();
+        if (latest != null) {
+            current = latest;
+            uploaded = false;
+        }
+        GLES20.glViewport(0, 0, viewWidth, viewHeight);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        if (current == null || program == -1) return;
+        if (!uploaded) {
+            upload(current);
+            uploaded = true;
+        }
+
+        // keep the frame's aspect ratio, centered with black bars, like CustomCameraView does
+        boolean sideways = (current.turns & 1) != 0;
+        int frameWidth = sideways ? current.height : current.width;
+        int frameHeight = sideways ? current.width : current.height;
+        float scale = Math.min(viewWidth / (float) frameWidth, viewHeight / (float) frameHeight);
+        int width = Math.round(frameWidth * scale);
+        int height = Math.round(frameHeight * scale);
+        GLES20.glViewport((viewWidth - width) / 2, (viewHeight - height) / 2, width, height);
+
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        GLES20.glVertexAttribPointer(vPosition, 2, GLES20.GL_FLOAT, false, 0, vertices);
+        GLES20.glVertexAttribPointer(vTexCoord, 2, GLES20.GL_FLOAT, false, 0, texCoords[current.turns]);
+        GLES20.glEnableVertexAttribArray(vPosition);
+        GLES20.glEnableVertexAttribArray(vTexCoord);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void upload(FrameBuffer buffer) {
+        int format = buffer.channels == 1 ? GLES20.GL_LUMINANCE : (buffer.channels == 3 ? GLES20.GL_RGB : GLES20.GL_RGBA);
+        buffer.pixels.position(0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        if (buffer.width == textureWidth && buffer.height == textureHeight && format == textureFormat) {
+            // the texture's storage is reused as long as the frames stay the same size
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, buffer.width, buffer.height, format,
+                    GLES20.GL_UNSIGNED_BYTE, buffer.pixels);
+        } else {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, buffer.width, buffer.height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, buffer.pixels);
+            textureWidth = buffer.width;
+            textureHeight = buffer.height;
+            textureFormat = format;
+        }
+    }
+
+    private static int loadProgram() {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) return -1;
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Couldn't link the shader program: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return -1;
+        }
+        return program;
+    }
+
+    private static int loadShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Couldn't compile a shader: " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    // For each corner of VERTICES, the point of the frame that ends up there once it's turned clockwise.
+    // Texture coordinate (0, 0) is the first pixel of the first row, which belongs at the top left.
+    private static float[] texCoords(int quarterTurns) {
+        float[] coords = new float[VERTICES.length];
+        for (int i = 0; i < VERTICES.length; i += 2) {
+            // where the corner is on the screen, with (0, 0) at the top left
+            float x = (VERTICES[i] + 1) / 2;
+            float y = (1 - VERTICES[i + 1]) / 2;
+            for (int turn = 0; turn < quarterTurns; turn++) {
+                // undo one clockwise turn
+                float turned = x;
+                x = y;
+                y = 1 - turned;
+            }
+            coords[i] = x;
+            coords[i + 1] = y;
+        }
+        return coords;
+    }
+
+    private static FloatBuffer floatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    /**
+     * A frame's pixels in a direct buffer that GL can read, with a Mat over the same memory for OpenCV to write into.
+     */
+    private static class FrameBuffer {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(0);
+        Mat mat = new Mat();
+        int width;
+        int height;
+        int channels;
+        int turns;
+
+        void ensure(int width, int height, int channels) {
+            if (width == this.width && height == this.height && channels == this.channels) return;
+            pixels = ByteBuffer.allocateDirect(width * height * channels);
+            mat.release();
+            mat = new Mat(height, width, CvType.makeType(CvType.CV_8U, channels), pixels);
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+    }
+}
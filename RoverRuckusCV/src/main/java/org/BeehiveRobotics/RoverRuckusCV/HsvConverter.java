@@ -0,0 +1,132 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Converts NV21 camera frames straight to 8 bit HSV, without first making the 4 channel RGBA frame that
+ * CvCameraViewFrame.rgba() returns and then reading it back to convert it again.
+ *
+ * The Java kernels go from the YUV bytes to HSV one pixel at a time, using the same fixed point maths as OpenCV's
+ * COLOR_YUV2RGB_NV21 and COLOR_RGB2HSV, so they give the same results as those two cvtColor calls. They can also
+ * sample every step-th pixel of a region and write separate H, S and V planes, like {@link YuvColorTable#classify}.
+ * {@link #convert(Mat, Mat, Mat)} does the same through OpenCV, going through a 3 channel RGB frame instead of RGBA.
+ *
+ * The Java kernels only use plain Java, so they also run off the phone.
+ */
+public class HsvConverter {
+    // OpenCV's BT.601 coefficients for YUV -> RGB, in 20 bit fixed point
+    private static final int YUV_SHIFT = 20;
+    private static final int CY  = 1220542;
+    private static final int CUB = 2116026;
+    private static final int CUG = -409993;
+    private static final int CVG = -852492;
+    private static final int CVR = 1673527;
+    private static final int YUV_ROUND = 1 << (YUV_SHIFT - 1);
+
+    // OpenCV's RGB -> HSV divides with these tables of reciprocals, in 12 bit fixed point
+    private static final int HSV_SHIFT = 12;
+    private static final int HSV_ROUND = 1 << (HSV_SHIFT - 1);
+    private static final int[] S_DIV = new int[256];
+    private static final int[] H_DIV = new int[256];
+
+    static {
+        for (int i = 1; i < 256; i++) {
+            S_DIV[i] = (int) Math.round((255 << HSV_SHIFT) / (double) i);
+            H_DIV[i] = (int) Math.round((180 << HSV_SHIFT) / (6.0 * i));
+        }
+    }
+
+    private HsvConverter() {
+    }
+
+    /**
+     * Converts a whole NV21 frame to HSV.
+     * @param nv21 the frame: width*height bytes of Y, then width*height/2 bytes of interleaved V and U
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param hsv width*height*3 bytes for the result, H, S and V for each pixel in turn, like a CV_8UC3 Mat
+     */
+    public static void convert(byte[] nv21, int width, int height, byte[] hsv) {
+        convert(nv21, width, height, 0, 0, width, height, 1, hsv);
+    }
+
+    /**
+     * Converts one region of an NV21 frame to HSV, optionally only looking at every step-th pixel of every step-th row.
+     * @param nv21 the frame: width*height bytes of Y, then width*height/2 bytes of interleaved V and U
+     * @param width the width of the whole frame
+     * @param height the height of the whole frame
+     * @param left the left edge of the region, in frame pixels
+     * @param top the top edge of the region, in frame pixels
+     * @param regionWidth the width of the result; the region covers regionWidth*step frame pixels
+     * @param regionHeight the height of the result; the region covers regionHeight*step frame pixels
+     * @param step 1 to convert every pixel, 2 for every other pixel of every other row, and so on
+     * @param hsv regionWidth*regionHeight*3 bytes for the result, H, S and V for each pixel in turn
+     */
+    public static void convert(byte[] nv21, int width, int height, int left, int top, int regionWidth, int regionHeight, int step, byte[] hsv) {
+        convert(nv21, width, height, left, top, regionWidth, regionHeight, step, hsv, 0, hsv, 1, hsv, 2, 3);
+    }
+
+    /**
+     * Like {@link #convert(byte[], int, int, int, int, int, int, int, byte[])}, but writes H, S and V to separate
+     * arrays, which saves splitting them afterwards when only one or two of them are needed.
+     * @param hue regionWidth*regionHeight bytes for H, in [0,179]
+     * @param saturation regionWidth*regionHeight bytes for S
+     * @param value regionWidth*regionHeight bytes for V
+     */
+    public static void convertPlanes(byte[] nv21, int width, int height, int left, int top, int regionWidth, int regionHeight, int step,
+                                     byte[] hue, byte[] saturation, byte[] value) {
+        convert(nv21, width, height, left, top, regionWidth, regionHeight, step, hue, 0, saturation, 0, value, 0, 1);
+    }
+
+    private static void convert(byte[] nv21, int width, int height, int left, int top, int regionWidth, int regionHeight, int step,
+                                byte[] hue, int hueOffset, byte[] saturation, int saturationOffset, byte[] value, int valueOffset,
+                                int pixelStride) {
+        final int frameSize = width * height;
+        for (int row = 0; row < regionHeight; row++) {
+            final int frameRow = top + row * step;
+            final int yRow = frameRow * width;
+            final int uvRow = frameSize + (frameRow >> 1) * width;
+            int out = row * regionWidth * pixelStride;
+            for (int col = 0; col < regionWidth; col++, out += pixelStride) {
+                final int x = left + col * step;
+                final int uv = uvRow + (x & ~1);
+                final int y = Math.max(0, (nv21[yRow + x] & 0xff) - 16) * CY;
+                final int v = (nv21[uv] & 0xff) - 128;
+                final int u = (nv21[uv + 1] & 0xff) - 128;
+                final int r = clamp((y + YUV_ROUND + CVR * v) >> YUV_SHIFT);
+                final int g = clamp((y + YUV_ROUND + CVG * v + CUG * u) >> YUV_SHIFT);
+                final int b = clamp((y + YUV_ROUND + CUB * u) >> YUV_SHIFT);
+
+                final int max = Math.max(r, Math.max(g, b));
+                final int diff = max - Math.min(r, Math.min(g, b));
+                int h;
+                if (max == r) h = g - b;
+                else if (max == g) h = b - r + 2 * diff;
+                else h = r - g + 4 * diff;
+                h = (h * H_DIV[diff] + HSV_ROUND) >> HSV_SHIFT;
+                if (h < 0) h += 180;
+
+                hue[out + hueOffset] = (byte) h;
+                saturation[out + saturationOffset] = (byte) ((diff * S_DIV[max] + HSV_ROUND) >> HSV_SHIFT);
+                value[out + valueOffset] = (byte) max;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Converts an NV21 Mat to HSV through OpenCV. Going through a 3 channel RGB frame instead of the 4 channel RGBA
+     * frame moves a quarter less memory, and the scratch Mat is reused instead of allocated each time.
+     * @param nv21 the frame, as returned by CvCameraViewFrame.yuv()
+     * @param hsv where to put the CV_8UC3 result
+     * @param rgb a scratch Mat to keep between calls
+     */
+    public static void convert(Mat nv21, Mat hsv, Mat rgb) {
+        Imgproc.cvtColor(nv21, rgb, Imgproc.COLOR_YUV2RGB_NV21, 3);
+        Imgproc.cvtColor(rgb, hsv, Imgproc.COLOR_RGB2HSV, 3);
+    }
+}
@@ -0,0 +1,106 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with log-linear buckets like HdrHistogram: every power of two
+ * is split into 16 equal buckets, so any value is known to within about 6% from 1ns up to about 18 minutes, in a
+ * fixed 592 counters. Recording is a couple of atomic increments and never allocates, so it's cheap enough to do
+ * for every stage of every frame from any number of threads.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values are clamped to below 2^MAX_EXPONENT ns (about 18 minutes)
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one duration.
+     * @param nanos the duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(MAX_VALUE, nanos));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous;
+        while (value > (previous = max.get())) {
+            if (max.compareAndSet(previous, value)) break;
+        }
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the longest duration recorded in nanoseconds, exactly
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Reads the histogram while it may still be recording, so under load the answer can be a value or two behind.
+     * @param percentile between 0 and 100, e.g. 99 for the 99th percentile
+     * @return the duration in nanoseconds that the given percentage of recorded durations are at or below,
+     *         to within the width of its bucket, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestInBucket(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets everything recorded so far. Durations recorded at the same time may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestInBucket(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,95 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-slot, lock-free mailbox that hands frames from one producer thread to one consumer thread,
+ * where the newest frame always wins.
+ * Internally it's a triple buffer: the producer always owns one slot to fill, the consumer owns the slot
+ * it is working on, and the third slot sits in the mailbox. Publishing swaps the producer's slot into the
+ * mailbox, so a frame the consumer never picked up is simply overwritten (and counted as dropped) instead of
+ * blocking the producer. Nothing is allocated after construction.
+ * @param <T> the type of the preallocated frame slots
+ */
+class LatestFrameMailbox<T> {
+    private static final int INDEX_MASK = 3;
+    // set on the mailbox index when it holds a frame the consumer hasn't taken yet
+    private static final int FRESH = 4;
+
+    private final T[] slots;
+    private final AtomicInteger mailbox = new AtomicInteger(2);
+    private int producerIndex = 0; // only touched by the producer
+    private int consumerIndex = 1; // only touched by the consumer
+    private volatile Thread consumer;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param slots exactly three preallocated slots; they are reused for the whole life of the mailbox
+     */
+    LatestFrameMailbox(T[] slots) {
+        if (slots.length != 3) throw new IllegalArgumentException("A LatestFrameMailbox needs exactly 3 slots!");
+        this.slots = slots;
+    }
+
+    /**
+     * @return the slot the producer should fill before calling {@link #publish()}
+     */
+    T producerSlot() {
+        return slots[producerIndex];
+    }
+
+    /**
+     * Publishes the producer slot, replacing any frame the consumer hasn't taken yet, and wakes the consumer.
+     * Never blocks.
+     */
+    void publish() {
+        int previous = mailbox.getAndSet(producerIndex | FRESH);
+        producerIndex = previous & INDEX_MASK;
+        published.incrementAndGet();
+        if ((previous & FRESH) != 0) dropped.incrementAndGet();
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Parks the calling (consumer) thread until a frame newer than the last one taken is published.
+     * The returned slot belongs to the consumer until the next call to take().
+     * @return the newest published slot, or null if the consumer thread was interrupted while waiting
+     */
+    T take() {
+        consumer = Thread.currentThread();
+        while ((mailbox.get() & FRESH) == 0) {
+            if (Thread.interrupted()) return null;
+            LockSupport.park(this);
+        }
+        consumerIndex = mailbox.getAndSet(consumerIndex) & INDEX_MASK;
+        return slots[consumerIndex];
+    }
+
+    /**
+     * Like {@link #take()}, but never blocks, for consumers that are woken up some other way, e.g. a GL render thread.
+     * @return the newest published slot if one was published since the last take or poll, otherwise null
+     */
+    T poll() {
+        if ((mailbox.get() & FRESH) == 0) return null;
+        consumerIndex = mailbox.getAndSet(consumerIndex) & INDEX_MASK;
+        return slots[consumerIndex];
+    }
+
+    /**
+     * @return the number of frames published to the mailbox
+     */
+    long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of published frames that were overwritten before the consumer took them
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+}
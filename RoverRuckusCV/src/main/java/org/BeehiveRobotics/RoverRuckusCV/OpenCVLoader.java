@@ -4,11 +4,22 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by guinea on 2/21/18.
@@ -49,35 +60,227 @@ public class OpenCVLoader {
     public static void setFilesDir(String path) {
         filesDir = path;
     }
-    public static void loadOpenCV() {
+    private static final String TAG = "EnderCV";
+    private static final String LIBRARY_NAME = "libopencv_java3.so";
 
-        File protectedStorageLib = new File(filesDir + "/extra/libopencv_java3.so");
-        File protectedExtraFolder = new File(filesDir + "/extra/");
-        File internalStorageLib = new File(Environment.getExternalStorageDirectory() + "/EnderCV/libopencv_java3.so");
-        if (!protectedStorageLib.exists() && internalStorageLib.exists()) {
-            if (!protectedExtraFolder.exists())
-                protectedExtraFolder.mkdir();
+    /**
+     * Told once OpenCV has finished loading, or failed to.
+     */
+    public interface LoadCallback {
+        /**
+         * Called on the thread that loaded OpenCV, or right away on the caller's thread if it was already done.
+         * @param loaded whether OpenCV can be used
+         */
+        void onLoaded(boolean loaded);
+    }
+
+    // Loads OpenCV at most once, whichever of preload() or awaitLoaded() gets to it first
+    private static final FutureTask<Boolean> loadTask = new FutureTask<Boolean>(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            long start = System.nanoTime();
+            try {
+                // the library bundled with the app, if it still is
+                System.loadLibrary("opencv_java3");
+                Log.i(TAG, "Loaded the bundled OpenCV in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                return true;
+            } catch (UnsatisfiedLinkError e) {
+                return loadOpenCV();
+            }
+        }
+    }) {
+        @Override
+        protected void done() {
+            List<LoadCallback> waiting;
+            synchronized (callbacks) {
+                waiting = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+            boolean loaded = isLoaded();
+            for (LoadCallback callback : waiting) callback.onLoaded(loaded);
+        }
+    };
+    private static final AtomicBoolean loadStarted = new AtomicBoolean();
+    private static final List<LoadCallback> callbacks = new ArrayList<>(); // guarded by itself
+    // Held while the library is copied and loaded, so two direct calls to loadOpenCV() don't copy over each other.
+    // Private, so nothing else that locks on OpenCVLoader.class ends up waiting for the copy.
+    private static final Object loadLock = new Object();
+
+    /**
+     * Starts loading OpenCV on a background thread and returns straight away. Loading can take seconds when the
+     * library has to be copied, so call this as early as possible, e.g. when OpModes are registered or at the top of
+     * an OpMode's init, before any class that uses OpenCV is touched. OpenCVPipeline waits for this load instead of
+     * starting its own, so pipelines only block if it hasn't finished yet. Calling this again does nothing.
+     * @return a future that completes with whether OpenCV loaded
+     */
+    public static Future<Boolean> preload() {
+        if (claimLoad()) {
+            Thread loader = new Thread(loadTask, "OpenCV loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        return loadTask;
+    }
+
+    /**
+     * Like {@link #preload()}, but also calls back once OpenCV is loaded.
+     * @param callback told whether OpenCV loaded; called right away if loading has already finished
+     */
+    public static Future<Boolean> preload(LoadCallback callback) {
+        synchronized (callbacks) {
+            // once the task is done, done() has already taken the list, so the callback is called here instead
+            if (!loadTask.isDone()) {
+                callbacks.add(callback);
+                callback = null;
+            }
+        }
+        if (callback != null) callback.onLoaded(isLoaded());
+        return preload();
+    }
+
+    /**
+     * @return true if OpenCV has finished loading successfully; never blocks
+     */
+    public static boolean isLoaded() {
+        if (!loadTask.isDone()) return false;
+        try {
+            return loadTask.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits for OpenCV to be loaded, loading it on the calling thread if {@link #preload()} was never called.
+     * @return whether OpenCV loaded
+     */
+    public static boolean awaitLoaded() {
+        // with nothing loading it yet, there's no point starting a thread just to wait for it
+        if (claimLoad()) loadTask.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return loadTask.get();
+                } catch (InterruptedException e) {
+                    // this usually runs in a static initializer, which can't give up halfway
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "OpenCV Load Error: ", e.getCause());
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean claimLoad() {
+        return loadStarted.compareAndSet(false, true);
+    }
 
+    /**
+     * Loads the OpenCV library from the app's private storage, first copying it there from external storage if the
+     * copy there is missing or out of date. The copy is only redone when the source's size or modification time
+     * differs from what was recorded for the last copy, so normally this only loads the library.
+     * Most code should use {@link #preload()} or {@link #awaitLoaded()} instead, which also try the bundled library first.
+     * @return whether the library was loaded
+     */
+    public static boolean loadOpenCV() {
+        synchronized (loadLock) {
+            return loadFromStorage();
         }
+    }
+
+    private static boolean loadFromStorage() {
+        long start = System.nanoTime();
+        File protectedExtraFolder = new File(filesDir + "/extra/");
+        File protectedStorageLib = new File(protectedExtraFolder, LIBRARY_NAME);
+        // Remembers the size and modification time of the library the copy was made from
+        File protectedStorageStamp = new File(protectedExtraFolder, LIBRARY_NAME + ".stamp");
+        File internalStorageLib = new File(Environment.getExternalStorageDirectory() + "/EnderCV/" + LIBRARY_NAME);
 
         try {
-            /*
-             * Copy the file with a 1MiB buffer
-             */
-            InputStream is = new FileInputStream(internalStorageLib);
-            OutputStream os = new FileOutputStream(protectedStorageLib);
-            byte[] buff = new byte[1024];
-            int len;
-            while ((len = is.read(buff)) > 0) {
-                os.write(buff, 0, len);
+            if (internalStorageLib.exists()) {
+                String stamp = internalStorageLib.length() + " " + internalStorageLib.lastModified();
+                if (protectedStorageLib.length() == internalStorageLib.length() && stamp.equals(readStamp(protectedStorageStamp))) {
+                    Log.i(TAG, "The copy of " + LIBRARY_NAME + " is up to date");
+                } else {
+                    if (!protectedExtraFolder.exists() && !protectedExtraFolder.mkdirs())
+                        throw new IOException("Couldn't create " + protectedExtraFolder);
+                    long copyStart = System.nanoTime();
+                    try {
+                        copy(internalStorageLib, protectedStorageLib);
+                        writeStamp(protectedStorageStamp, stamp);
+                        Log.i(TAG, "Copied " + LIBRARY_NAME + " (" + internalStorageLib.length() + " bytes) in "
+                                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - copyStart) + " ms");
+                    } catch (IOException e) {
+                        if (!protectedStorageLib.exists()) throw e;
+                        // the stamp is left alone, so the copy is tried again next time
+                        Log.w(TAG, "Couldn't copy " + LIBRARY_NAME + ", loading the existing copy", e);
+                    }
+                }
+            } else if (!protectedStorageLib.exists()) {
+                Log.e(TAG, "OpenCV Load Error: " + LIBRARY_NAME + " is in neither " + internalStorageLib + " nor " + protectedStorageLib);
+                return false;
+            } else {
+                // nothing to copy from, but an earlier copy can still be used
+                Log.w(TAG, internalStorageLib + " is missing, loading the existing copy of " + LIBRARY_NAME);
             }
-            is.close();
-            os.close();
 
+            long loadStart = System.nanoTime();
             System.load(protectedStorageLib.getAbsolutePath());
-        } catch (Exception e) {
-            Log.e("EnderCV", "OpenCV Load Error: ", e);
+            long end = System.nanoTime();
+            Log.i(TAG, "Loaded OpenCV in " + TimeUnit.NANOSECONDS.toMillis(end - loadStart) + " ms, "
+                    + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms in total");
+            return true;
+        } catch (Exception | UnsatisfiedLinkError e) {
+            Log.e(TAG, "OpenCV Load Error: ", e);
+            return false;
         }
+    }
 
+    // Copies into a temporary file next to the destination and then renames it, so a copy that gets interrupted
+    // never leaves a truncated library behind where it would be loaded
+    private static void copy(File source, File destination) throws IOException {
+        File temp = new File(destination.getPath() + ".tmp");
+        boolean copied = false;
+        try {
+            try (FileChannel in = new FileInputStream(source).getChannel();
+                 FileChannel out = new FileOutputStream(temp).getChannel()) {
+                long size = in.size();
+                long position = 0;
+                // transferTo can copy less than asked for, so keep going until everything is there
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    // e.g. the source was truncated while copying; without this the loop would never end
+                    if (transferred <= 0) throw new IOException("Copying " + source + " stopped after " + position + " of " + size + " bytes");
+                    position += transferred;
+                }
+                out.force(false);
+            }
+            if (!temp.renameTo(destination)) throw new IOException("Couldn't rename " + temp + " to " + destination);
+            copied = true;
+        } finally {
+            if (!copied) temp.delete();
+        }
+    }
+
+    private static String readStamp(File file) {
+        if (!file.exists()) return null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Without a stamp the next start just copies again, so failing to write one isn't worth failing the load for
+    private static void writeStamp(File file, String stamp) {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(stamp);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't write " + file, e);
+        }
     }
 }
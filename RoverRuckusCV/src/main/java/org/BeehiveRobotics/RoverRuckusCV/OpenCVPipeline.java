@@ -2,12 +2,33 @@ package org.BeehiveRobotics.RoverRuckusCV;
 
 import android.app.Activity;
 import android.content.Context;
+import android.util.Log;
 import android.view.Surface;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
 
 import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.FrameMetrics;
 import org.opencv.android.JavaCameraView;
-import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by guinea on 6/19/17.
@@ -42,19 +63,128 @@ import org.opencv.core.Mat;
  */
 
 public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraViewListener2 {
+    private static final String TAG = "OpenCVPipeline";
+
     static {
-        try {
-            System.loadLibrary("opencv_java3");
-        } catch (UnsatisfiedLinkError e) {
-            OpenCVLoader.loadOpenCV();
-            // pass
-        }
+        // only blocks if OpenCVLoader.preload() hasn't finished yet, or was never called
+        OpenCVLoader.awaitLoaded();
     }
     protected JavaCameraView cameraView;
     private ViewDisplay viewDisplay;
     protected Context context;
     private boolean initStarted = false;
-    private boolean inited = false;
+    // Completed by the UI thread once the views exist, or with whatever went wrong making them
+    private volatile FutureTask<Void> initTask;
+
+    // Counted down by the first frame after each enable(), so OpModes can tell whether the camera started;
+    // null until the first enable(), e.g. when frames are replayed
+    private volatile CountDownLatch firstFrame;
+    private volatile long enableTimestamp;
+    private volatile long timeToFirstFrame = -1; // in nanoseconds
+
+    // Picks the camera frame size from a frame rate target after each enable(); 0 leaves the size alone
+    private volatile double targetFrameRate = 0;
+    private volatile FrameSizeProbe sizeProbe; // only set while a size is being picked
+    private Thread sizeProbeThread;
+    // Held by the probe while it restarts the camera, and by disable() while it stops the probe, so a restart that
+    // is already underway finishes before disable() turns the camera off, and none starts after
+    private final Object probeLock = new Object();
+    private boolean cameraStopped = true; // guarded by probeLock
+    private static final int PROBE_ROUNDS = 3;
+    private static final int PROBE_WARMUP_FRAMES = 5;
+    private static final int PROBE_FRAMES = 10;
+    private static final long PROBE_TIMEOUT_MS = 5000;
+
+    // To keep onCameraFrame from allocating every frame, the rotation targets are created once and
+    // reused; Core.rotate only reallocates them if the frame size changes.
+    private final Mat rotatedRgba = new Mat();
+    private final Mat rotatedGray = new Mat();
+    // The display rotation is looked up once per camera session instead of once per frame; -1 means unknown.
+    private int displayRotation = -1;
+
+    // Frames can be shrunk before processing, trading resolution for speed; 1 means full resolution.
+    private volatile int processingScale = 1;
+    private final Mat scaledRgba = new Mat();
+    private final Mat scaledGray = new Mat();
+    // An empty size tells Imgproc.resize to use its scale factors instead
+    private static final Size SCALE_BY_FACTOR = new Size();
+
+    // Async mode hands frames to a dedicated processing thread instead of processing on the camera thread.
+    // volatile since setAsync holds the pipeline's lock, but start() and replay() read it without
+    private volatile boolean async = false;
+    private LatestFrameMailbox<FrameSlot> mailbox;
+    private volatile Thread processingThread;
+    private ProcessingWorker processingWorker;
+    private final AtomicLong processedFrames = new AtomicLong();
+
+    // Counts frames whose results have been published, so other threads can wait for fresh results without spinning.
+    private final Object frameLock = new Object();
+    private long publishedFrames = 0; // guarded by frameLock
+    // When the camera captured the frame behind the latest published results, and its sequence number
+    private long lastResultTimestamp = 0; // guarded by frameLock
+    private long lastResultSequence = -1; // guarded by frameLock
+    private volatile boolean autoPublishFrames = true;
+
+    /** The rgba Mat passed to {@link #processFrame(Mat, Mat)} */
+    public static final int FORMAT_RGBA = 1;
+    /** The gray Mat passed to {@link #processFrame(Mat, Mat)} */
+    public static final int FORMAT_GRAY = 2;
+    /**
+     * {@link #getHsvFrame()}, converted the first time it's asked for: from rgba if that was asked for too, otherwise
+     * straight from the camera's YUV data, without making an RGBA frame at all
+     */
+    public static final int FORMAT_HSV = 4;
+    /** {@link #getRawFrame()} and {@link #getRawFrameData()}, the camera's YUV data without any conversion */
+    public static final int FORMAT_RAW = 8;
+
+    // Which of the formats above the pipeline uses; the conversions for the others are never done.
+    private volatile int frameFormats = FORMAT_RGBA | FORMAT_GRAY;
+    private final Mat hsvFrame = new Mat();
+    private final Mat hsvCamera = new Mat();
+    private final Mat hsvRgb = new Mat();
+    private byte[] hsvBytes = new byte[0];
+    private Mat hsvResult;
+    private boolean hsvEnabled; // only set while processFrame runs
+    private Mat hsvSource; // the rgba frame to convert, or null to convert the raw frame; only set while processFrame runs
+    private int hsvScale; // only set while processFrame runs
+    private boolean hsvValid;
+    private Mat rawFrame; // only set while processFrame runs
+    private byte[] rawFrameData; // only set while processFrame runs
+    private FrameSlot rawFrameSlot; // only set while processFrame runs in async mode
+    // The camera size of the frame being processed, which in async mode can differ from cameraWidth and cameraHeight
+    // once the camera has been restarted at another size; 0 when no frame is being processed. Set on the thread that
+    // runs processFrame, but read by getCameraFrameWidth and getCameraFrameHeight from any thread.
+    private volatile int rawFrameWidth;
+    private volatile int rawFrameHeight;
+    // The size of the frames the camera delivers, before rotating or scaling; also read by the frame size probe
+    private volatile int cameraWidth;
+    private volatile int cameraHeight;
+    private long frameTimestamp; // only set while processFrame runs
+    private long frameSequence; // only set while processFrame runs
+
+    private volatile FrameRecorder recorder;
+
+    // How the camera view draws frames; kept here since the view is only created later, on the UI thread
+    private volatile int displayInterval = 1;
+    private volatile int displayScale = 1;
+    private volatile boolean displayOnlyWhenVisible = true;
+
+    /** Draw frames by converting them to a Bitmap and drawing that on the camera view's canvas; the default */
+    public static final int DISPLAY_CANVAS = 0;
+    /** Upload the Mat returned by {@link #processFrame(Mat, Mat)} as a GL texture and draw it with the GPU */
+    public static final int DISPLAY_GL = 1;
+    /** Upload only the camera's Y plane as a GL texture, ignoring the Mat returned by processFrame */
+    public static final int DISPLAY_GL_LUMA = 2;
+    private int displayMode = DISPLAY_CANVAS;
+    // In the GL modes, the camera view and the GLFrameView on top of it are shown together in this
+    private View displayView;
+    // What processFrame draws over the frames; the display draws it only for the frames it shows
+    private final Overlay overlay = new Overlay();
+
+    // Latency histograms for each timed stage, in the order they were first asked for
+    private final Map<String, StageTimer> stageTimers = new LinkedHashMap<>(); // guarded by itself
+    private final StageTimer processFrameTimer = getStageTimer("processFrame");
+    private final StageTimer captureToResultTimer = getStageTimer("capture to result");
 
     /**
      * Initializes the OpenCVPipeline, but implicitly uses the rear camera.
@@ -62,8 +192,8 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
      * @param viewDisplay the ViewDisplay that will display the underlying JavaCameraView to the screen;
      *                    in most cases, using CameraViewDisplay.getInstance() as the argument is just fine.
      */
-    public void init(Context context, ViewDisplay viewDisplay) {
-        init(context, viewDisplay, 0);
+    public Future<Void> init(Context context, ViewDisplay viewDisplay) {
+        return init(context, viewDisplay, 0);
     }
 
     /**
@@ -72,41 +202,125 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
      * @param viewDisplay the ViewDisplay that will display the underlying JavaCameraView to the screen;
      *                    in most cases, using CameraViewDisplay.getInstance() as the argument is just fine.
      * @param cameraIndex The index of the camera to use. On every FTC-legal phone (afaik) 0 is the back camera, and 1 is the front camera.
+     * @return a future that completes once the camera view has been made on the UI thread, or fails with whatever
+     *         went wrong making it; {@link #enable()} waits for this itself, so most OpModes can ignore it
      */
-    public void init(Context context, ViewDisplay viewDisplay, final int cameraIndex) {
+    public Future<Void> init(Context context, ViewDisplay viewDisplay, final int cameraIndex) {
         this.initStarted = true;
         this.viewDisplay = viewDisplay;
         this.context = context;
         final Activity activity = (Activity) context;
         final Context finalContext = context;
         final CameraBridgeViewBase.CvCameraViewListener2 self = this;
-        activity.runOnUiThread(new Runnable() {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
             @Override
-            public void run() {
+            public Void call() {
                 // JCVs must be instantiated on a UI thread
-                cameraView = new CustomCameraView(finalContext, cameraIndex);
-                cameraView.setCameraIndex(cameraIndex);
-                cameraView.setCvCameraViewListener(self);
-                inited = true;
+                CustomCameraView view = new CustomCameraView(finalContext, cameraIndex);
+                view.setCameraIndex(cameraIndex);
+                view.setCvCameraViewListener(self);
+                // published first, so a setting changed while this runs is applied by one side or the other
+                cameraView = view;
+                view.setDisplayInterval(displayInterval);
+                view.setDisplayScale(displayScale);
+                view.setDisplayOnlyWhenVisible(displayOnlyWhenVisible);
+                if (displayMode == DISPLAY_CANVAS) {
+                    view.setOverlay(overlay);
+                    displayView = view;
+                } else {
+                    GLFrameView glView = new GLFrameView(finalContext);
+                    OverlayView overlayView = new OverlayView(finalContext, overlay);
+                    view.setGLFrameView(glView, overlayView, displayMode == DISPLAY_GL_LUMA);
+                    FrameLayout layout = new FrameLayout(finalContext);
+                    layout.addView(view, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+                    layout.addView(glView, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+                    layout.addView(overlayView, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+                    displayView = layout;
+                }
+                return null;
             }
         });
+        initTask = task;
+        activity.runOnUiThread(task);
+        return task;
     }
     //TODO: allow other JavaCameraViews to be used, with the stipulation that they must already be instantiated from a UI thread
 
     /**
      * Attaches the underlying JavaCameraView to the screen and the camera using the set {@link ViewDisplay} to do so, essentially starting OpenCV processing.
-     * This function must be called after init().
-     * @throws IllegalStateException if enable() is called before init()
+     * This function must be called after init(), and waits for init() to finish on the UI thread if it hasn't yet.
+     * @throws IllegalStateException if enable() is called before init(), or init() failed
      */
     public void enable() {
-        if (!initStarted) throw new IllegalStateException("init() needs to be called before an OpenCVPipeline can be enabled!");
-        // this is an absolute hack
         try {
-            while (!inited) Thread.sleep(10);
-        } catch (InterruptedException e) { return; }
+            awaitInit(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+        start();
+    }
+
+    /**
+     * Like {@link #enable()}, but gives up instead of leaving the OpMode hanging if the camera doesn't get going, e.g.
+     * because another app is using it. The time the first frame took is logged and kept in
+     * {@link #getTimeToFirstFrame(TimeUnit)}.
+     * @param timeout the longest time to wait for init() to finish and then for the camera's first frame
+     * @param unit the unit of timeout
+     * @return true once the first frame has arrived; false if the timeout ran out first, in which case the pipeline is
+     *         still enabled if init() had finished, so call {@link #disable()} before giving up on it
+     * @throws IllegalStateException if enable() is called before init(), or init() failed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean enable(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            awaitInit(timeout, unit);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "init() didn't finish within " + unit.toMillis(timeout) + " ms");
+            return false;
+        }
+        start();
+        boolean started = firstFrame.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (!started) Log.e(TAG, "The camera didn't deliver a frame within " + unit.toMillis(timeout) + " ms of enable()");
+        return started;
+    }
+
+    private void awaitInit(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        FutureTask<Void> initTask = this.initTask;
+        if (!initStarted || initTask == null) throw new IllegalStateException("init() needs to be called before an OpenCVPipeline can be enabled!");
+        try {
+            initTask.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("init() failed, so the OpenCVPipeline can't be enabled", e.getCause());
+        }
+    }
 
+    private void start() {
+        enableTimestamp = System.nanoTime();
+        timeToFirstFrame = -1;
+        firstFrame = new CountDownLatch(1);
+        displayRotation = -1;
+        if (async) startProcessingThread();
         cameraView.enableView();
-        viewDisplay.setCurrentView(context, getCameraView());
+        viewDisplay.setCurrentView(context, displayView);
+        if (targetFrameRate > 0) {
+            synchronized (probeLock) {
+                cameraStopped = false;
+            }
+            startSizeProbe(targetFrameRate);
+        }
+    }
+
+    /**
+     * @param unit the unit to return the time in
+     * @return how long the camera took to deliver its first frame after the last enable(), or -1 if it hasn't yet
+     */
+    public long getTimeToFirstFrame(TimeUnit unit) {
+        long time = timeToFirstFrame;
+        return time < 0 ? -1 : unit.convert(time, TimeUnit.NANOSECONDS);
     }
 
     /**
@@ -117,8 +331,623 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
      * because dean kamen help you if something bad happens from that
      */
     public void disable() {
+        synchronized (probeLock) {
+            cameraStopped = true;
+        }
+        stopSizeProbe();
         cameraView.disableView();
         viewDisplay.removeCurrentView(context);
+        stopProcessingThread();
+        onProcessingStopped();
+    }
+
+    /**
+     * Turns async mode on or off; this takes effect the next time {@link #enable()} is called.
+     * In async mode, the camera thread only rotates and copies each frame into a single-slot mailbox, and
+     * {@link #processFrame(Mat, Mat)} runs on a dedicated processing thread that always picks up the newest frame.
+     * Frames that arrive while processFrame is still busy replace the waiting one instead of queueing up, so capture,
+     * display and detection all run at their own rates. The preview then shows the live camera image, and the Mat
+     * returned by processFrame is not displayed.
+     * @param enabled whether to process frames asynchronously
+     */
+    public synchronized void setAsync(boolean enabled) {
+        async = enabled;
+    }
+
+    /**
+     * Shrinks every frame by the given factor before it is passed to {@link #processFrame(Mat, Mat)}, e.g. 2 processes
+     * a 640x480 camera frame at 320x240. Each halving leaves a quarter of the pixels to process. Pipelines should express
+     * their size thresholds as fractions of the frame size so they don't need recalibrating for each scale.
+     * The preview is stretched back to full size. This takes effect from the next frame.
+     * @param scale 1 (full resolution), 2 or 4
+     * @throws IllegalArgumentException if scale is not 1, 2 or 4
+     */
+    public void setProcessingScale(int scale) {
+        if (scale != 1 && scale != 2 && scale != 4) throw new IllegalArgumentException("The processing scale must be 1, 2 or 4!");
+        processingScale = scale;
+    }
+
+    /**
+     * @return how many times smaller than the camera's frames the frames passed to {@link #processFrame(Mat, Mat)} are
+     * @see #setProcessingScale(int)
+     */
+    public int getProcessingScale() {
+        return processingScale;
+    }
+
+    /**
+     * @return the number of frames handed to the processing thread in async mode
+     */
+    public long getCapturedFrameCount() {
+        LatestFrameMailbox<FrameSlot> mailbox = this.mailbox;
+        return mailbox == null ? 0 : mailbox.getPublishedCount();
+    }
+
+    /**
+     * @return the number of frames that were replaced by a newer frame before the processing thread got to them in async mode
+     */
+    public long getDroppedFrameCount() {
+        LatestFrameMailbox<FrameSlot> mailbox = this.mailbox;
+        return mailbox == null ? 0 : mailbox.getDroppedCount();
+    }
+
+    /**
+     * The camera's own view of the frames: how many it delivered, how many reached {@link #onCameraFrame}, and how many
+     * were lost on the way because processing fell behind. Frames dropped by async mode are counted separately, by
+     * {@link #getDroppedFrameCount()}.
+     * @return the camera view's frame counters, or null before {@link #init} has created the view
+     */
+    public FrameMetrics getCameraFrameMetrics() {
+        JavaCameraView cameraView = this.cameraView;
+        return cameraView == null ? null : cameraView.getFrameMetrics();
+    }
+
+    /**
+     * @return the number of frames that {@link #processFrame(Mat, Mat)} has finished processing
+     */
+    public long getProcessedFrameCount() {
+        return processedFrames.get();
+    }
+
+    /**
+     * @return the number of frames whose results have been published so far
+     * @see #publishFrame()
+     */
+    public long getPublishedFrameCount() {
+        synchronized (frameLock) {
+            return publishedFrames;
+        }
+    }
+
+    /**
+     * Blocks the calling thread until the results of the given number of new frames have been published, without
+     * spinning. Use this from an OpMode to make sure a detector's results come from frames taken after a certain point.
+     * @param frames how many frames to wait for, counting from when this is called
+     * @param timeout the longest time to wait
+     * @param unit the unit of timeout
+     * @return true if the frames were published, false if the timeout ran out first (e.g. the camera is not running)
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean awaitNewFrames(int frames, long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (frameLock) {
+            return awaitFrameCount(publishedFrames + frames, timeout, unit);
+        }
+    }
+
+    /**
+     * Blocks the calling thread until the published frame count reaches the given value, without spinning.
+     * @param count the value of {@link #getPublishedFrameCount()} to wait for
+     * @param timeout the longest time to wait
+     * @param unit the unit of timeout
+     * @return true if the count was reached, false if the timeout ran out first
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean awaitFrameCount(long count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (frameLock) {
+            while (publishedFrames < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(frameLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Marks the results of one more frame as published, waking any thread in {@link #awaitNewFrames(int, long, TimeUnit)}.
+     * By default this is called automatically after every {@link #processFrame(Mat, Mat)}; pipelines that publish their
+     * results somewhere else (e.g. from another thread) should turn that off with {@link #setAutoPublishFrames(boolean)}
+     * and call this themselves once a frame's results are visible.
+     */
+    protected final void publishFrame() {
+        publishFrame(frameTimestamp, frameSequence);
+    }
+
+    /**
+     * Like {@link #publishFrame()}, for pipelines that publish results after processFrame has returned, e.g. from
+     * another thread, and so have to say which frame the results came from.
+     * The time from capture to now is recorded under "capture to result" in {@link #getStats()}.
+     * @param captureTimestamp the frame's {@link #getFrameTimestamp()}
+     * @param sequence the frame's {@link #getFrameSequence()}
+     */
+    protected final void publishFrame(long captureTimestamp, long sequence) {
+        captureToResultTimer.stop(captureTimestamp);
+        synchronized (frameLock) {
+            publishedFrames++;
+            lastResultTimestamp = captureTimestamp;
+            lastResultSequence = sequence;
+            frameLock.notifyAll();
+        }
+    }
+
+    /**
+     * @param unit the unit to return the age in
+     * @return how long ago the camera captured the frame behind the latest published results, or -1 if nothing has
+     *         been published yet. Something moving across the frame has moved on by this much since it was detected.
+     */
+    public long getResultAge(TimeUnit unit) {
+        synchronized (frameLock) {
+            if (lastResultSequence < 0) return -1;
+            return unit.convert(System.nanoTime() - lastResultTimestamp, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the camera's sequence number for the frame behind the latest published results, or -1 if nothing has
+     *         been published yet; it only counts up, so comparing two values tells whether the results changed
+     */
+    public long getLastResultSequence() {
+        synchronized (frameLock) {
+            return lastResultSequence;
+        }
+    }
+
+    /**
+     * Only valid during {@link #processFrame(Mat, Mat)}.
+     * @return when the camera captured the frame being processed, in {@link System#nanoTime()} time
+     */
+    protected long getFrameTimestamp() {
+        return frameTimestamp;
+    }
+
+    /**
+     * Only valid during {@link #processFrame(Mat, Mat)}.
+     * @return the camera's sequence number for the frame being processed; gaps mean frames were dropped
+     */
+    protected long getFrameSequence() {
+        return frameSequence;
+    }
+
+    /**
+     * @param enabled whether {@link #publishFrame()} is called automatically after every {@link #processFrame(Mat, Mat)}
+     */
+    protected void setAutoPublishFrames(boolean enabled) {
+        autoPublishFrames = enabled;
+    }
+
+    /**
+     * Declares which forms of the frame {@link #processFrame(Mat, Mat)} uses, so the conversions for the others are
+     * skipped; rgba and gray are null unless they're asked for. Shrinking, rotating and, in async mode, copying are
+     * skipped for unused formats too. For a lower resolution frame use {@link #setProcessingScale(int)}.
+     * Returning null from processFrame leaves the screen as it was, which is fine if nothing needs to be shown.
+     * @param formats any combination of {@link #FORMAT_RGBA}, {@link #FORMAT_GRAY}, {@link #FORMAT_HSV} and
+     *                {@link #FORMAT_RAW}, or'ed together; rgba and gray by default
+     */
+    protected void setFrameFormats(int formats) {
+        frameFormats = formats;
+    }
+
+    /**
+     * @return the formats set with {@link #setFrameFormats(int)}
+     */
+    protected int getFrameFormats() {
+        return frameFormats;
+    }
+
+    /**
+     * Adds or removes {@link #FORMAT_RAW} from the frame formats.
+     * @param enabled whether {@link #getRawFrame()} should be available to {@link #processFrame(Mat, Mat)};
+     *                in async mode this costs an extra copy of the raw frame, so it's off by default
+     */
+    protected void setRawFrameEnabled(boolean enabled) {
+        if (enabled) frameFormats |= FORMAT_RAW;
+        else frameFormats &= ~FORMAT_RAW;
+    }
+
+    /**
+     * Only valid during {@link #processFrame(Mat, Mat)}, and only if {@link #FORMAT_HSV} was asked for. The first call
+     * for each frame converts it, later ones return the same Mat.
+     * @return the frame in HSV, the same size and way up as rgba, or null if HSV is not enabled
+     */
+    protected Mat getHsvFrame() {
+        if (!hsvEnabled) return null;
+        if (!hsvValid) {
+            if (hsvSource != null) {
+                Imgproc.cvtColor(hsvSource, hsvFrame, Imgproc.COLOR_RGB2HSV, 3);
+                hsvResult = hsvFrame;
+            } else {
+                hsvResult = rotateToDisplay(rawToHsv(hsvScale), hsvFrame);
+            }
+            hsvValid = true;
+        }
+        return hsvResult;
+    }
+
+    // Converts the raw frame straight to HSV, shrunk by the processing scale but still in the camera's orientation
+    private Mat rawToHsv(int scale) {
+        byte[] data = rawFrameData;
+        if (data != null) {
+            // sampling every scale-th pixel does the shrinking for free
+            int width = rawFrameWidth / scale;
+            int height = rawFrameHeight / scale;
+            if (hsvBytes.length != width * height * 3) hsvBytes = new byte[width * height * 3];
+            HsvConverter.convert(data, rawFrameWidth, rawFrameHeight, 0, 0, width, height, scale, hsvBytes);
+            hsvCamera.create(height, width, CvType.CV_8UC3);
+            hsvCamera.put(0, 0, hsvBytes);
+            return hsvCamera;
+        }
+        if (scale == 1) {
+            HsvConverter.convert(getRawFrame(), hsvCamera, hsvRgb);
+            return hsvCamera;
+        }
+        HsvConverter.convert(getRawFrame(), hsvFrame, hsvRgb);
+        // averaging hues would wrap red around to cyan, so the nearest pixel is kept instead
+        double factor = 1.0 / scale;
+        Imgproc.resize(hsvFrame, hsvCamera, SCALE_BY_FACTOR, factor, factor, Imgproc.INTER_NEAREST);
+        return hsvCamera;
+    }
+
+    /**
+     * Only valid during {@link #processFrame(Mat, Mat)}, and only after {@link #setRawFrameEnabled(boolean)} was turned on.
+     * The raw frame is never shrunk, so pipelines using it should sample every {@link #getProcessingScale()}-th pixel.
+     * @return the frame as the camera captured it (see {@link CameraBridgeViewBase.CvCameraViewFrame#yuv()}),
+     *         in the camera's orientation rather than rotated for the display, or null if raw frames are not enabled
+     */
+    protected Mat getRawFrame() {
+        // in async mode the slot only turns its copy of the bytes into a Mat when something asks for it
+        if (rawFrame == null && rawFrameSlot != null) rawFrame = rawFrameSlot.raw();
+        return rawFrame;
+    }
+
+    /**
+     * The same data as {@link #getRawFrame()}, straight from the camera's buffer: width*height bytes of Y, then
+     * width*height/2 bytes of interleaved V and U. Java code that reads pixels itself should use this instead of
+     * copying the Mat out with Mat.get. Only valid during {@link #processFrame(Mat, Mat)}; the buffer goes back to
+     * the camera afterwards, so keep a copy if it's needed for longer.
+     * @return the raw NV21 bytes, or null if raw frames are not enabled or the camera doesn't provide a byte array
+     *         (see {@link CameraBridgeViewBase.CvCameraViewFrame#yuvData()}), in which case use {@link #getRawFrame()}
+     */
+    protected byte[] getRawFrameData() {
+        return rawFrameData;
+    }
+
+    /**
+     * @return the width of the frames the camera delivers, i.e. of {@link #getRawFrame()}, before rotating or scaling;
+     *         during processFrame, the width of the frame being processed
+     */
+    protected int getCameraFrameWidth() {
+        return rawFrameWidth != 0 ? rawFrameWidth : cameraWidth;
+    }
+
+    /**
+     * @return the height of the frames the camera delivers, not counting the chroma rows of {@link #getRawFrame()};
+     *         during processFrame, the height of the frame being processed
+     */
+    protected int getCameraFrameHeight() {
+        return rawFrameHeight != 0 ? rawFrameHeight : cameraHeight;
+    }
+
+    /**
+     * @return how the display is turned, one of the FrameRotation.ROTATION_* values, which decides how frames are
+     *         rotated before they're passed to {@link #processFrame(Mat, Mat)}; -1 before the first frame
+     */
+    protected int getDisplayRotation() {
+        return displayRotation;
+    }
+
+    /**
+     * Rotates a Mat that is in the camera's orientation, e.g. a mask computed from {@link #getRawFrame()},
+     * the same way rgba and gray are rotated before they are passed to {@link #processFrame(Mat, Mat)}.
+     * @param src the Mat in camera orientation
+     * @param dst where to put the rotated Mat
+     * @return dst, or src itself if the display doesn't need the frame rotated
+     */
+    protected Mat rotateToDisplay(Mat src, Mat dst) {
+        return FrameRotation.rotateToDisplay(src, dst, displayRotation);
+    }
+
+    /**
+     * Maps a rectangle on the frames passed to {@link #processFrame(Mat, Mat)} back onto the camera's frame, i.e. the
+     * opposite of {@link #rotateToDisplay(Mat, Mat)}. Useful for only processing part of {@link #getRawFrame()}.
+     * @param rect the rectangle in display orientation
+     * @param cameraWidth the width of the frame in camera orientation
+     * @param cameraHeight the height of the frame in camera orientation
+     * @param result where to put the rectangle in camera orientation
+     * @return result
+     */
+    protected Rect displayRectToCamera(Rect rect, int cameraWidth, int cameraHeight, Rect result) {
+        return FrameRotation.displayRectToCamera(rect, cameraWidth, cameraHeight, result, displayRotation);
+    }
+
+    /**
+     * Maps a rectangle on the camera's frame onto the frames passed to {@link #processFrame(Mat, Mat)}, i.e. turns it
+     * the same way {@link #rotateToDisplay(Mat, Mat)} turns a Mat.
+     * @param rect the rectangle in camera orientation
+     * @param cameraWidth the width of the frame in camera orientation
+     * @param cameraHeight the height of the frame in camera orientation
+     * @param result where to put the rectangle in display orientation; must not be rect
+     * @return result
+     */
+    protected Rect cameraRectToDisplay(Rect rect, int cameraWidth, int cameraHeight, Rect result) {
+        return FrameRotation.cameraRectToDisplay(rect, cameraWidth, cameraHeight, result, displayRotation);
+    }
+
+    /**
+     * Gets the timer for a stage of the pipeline, making it the first time it's asked for. processFrame itself is
+     * always timed, as "processFrame". Timers are cheap, but look them up once and keep them in a field rather than
+     * looking them up every frame.
+     * @param name the name of the stage
+     * @return the timer for that stage
+     * @see StageTimer
+     */
+    public StageTimer getStageTimer(String name) {
+        synchronized (stageTimers) {
+            StageTimer timer = stageTimers.get(name);
+            if (timer == null) {
+                timer = new StageTimer(name);
+                stageTimers.put(name, timer);
+            }
+            return timer;
+        }
+    }
+
+    /**
+     * Use this from an OpMode to see which stage is taking up the frame budget, e.g.
+     * <pre>
+     *     for (StageTimer.Stats stats : detector.getStats().values()) telemetry.addLine(stats.toString());
+     * </pre>
+     * @return the latencies of every timed stage so far, by stage name, in the order the stages were first timed
+     */
+    public Map<String, StageTimer.Stats> getStats() {
+        Map<String, StageTimer.Stats> stats = new LinkedHashMap<>();
+        synchronized (stageTimers) {
+            for (StageTimer timer : stageTimers.values()) stats.put(timer.getName(), timer.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Forgets the latencies recorded so far for every stage, e.g. at the start of a match.
+     */
+    public void resetStats() {
+        synchronized (stageTimers) {
+            for (StageTimer timer : stageTimers.values()) timer.reset();
+        }
+    }
+
+    /**
+     * Only draws every interval-th processed frame on the screen. Drawing happens on the same thread as processing,
+     * so during a match, when nobody is watching, this leaves more time for processing.
+     * @param interval e.g. 3 to draw every third frame, 1 to draw every frame (the default), or 0 to never draw
+     */
+    public void setDisplayInterval(int interval) {
+        if (interval < 0) throw new IllegalArgumentException("The display interval can't be negative!");
+        displayInterval = interval;
+        if (cameraView instanceof CustomCameraView) ((CustomCameraView) cameraView).setDisplayInterval(interval);
+    }
+
+    /**
+     * Draws frames on the screen at a lower resolution than they are processed at, which makes drawing cheaper.
+     * @param scale 1 (the default), or e.g. 2 to draw at half the width and height
+     */
+    public void setDisplayScale(int scale) {
+        if (scale < 1) throw new IllegalArgumentException("The display scale must be at least 1!");
+        displayScale = scale;
+        if (cameraView instanceof CustomCameraView) ((CustomCameraView) cameraView).setDisplayScale(scale);
+    }
+
+    /**
+     * @param enabled whether to skip drawing while the camera view isn't on the screen; on by default
+     */
+    public void setDisplayOnlyWhenVisible(boolean enabled) {
+        displayOnlyWhenVisible = enabled;
+        if (cameraView instanceof CustomCameraView) ((CustomCameraView) cameraView).setDisplayOnlyWhenVisible(enabled);
+    }
+
+    /**
+     * Boxes, outlines and text recorded here are drawn over the frames on the screen, but only for the frames that
+     * are actually shown, and not on the processing thread. Record one overlay per frame, in the coordinates of the
+     * Mats passed to {@link #processFrame(Mat, Mat)}:
+     * <pre>
+     *     Overlay overlay = getOverlay();
+     *     overlay.begin(rgba.cols(), rgba.rows());
+     *     overlay.box(x, y, width, height, 0xFF00FF00, 1);
+     *     overlay.commit();
+     * </pre>
+     * Only one thread may record at a time.
+     * @return the pipeline's overlay
+     */
+    protected Overlay getOverlay() {
+        return overlay;
+    }
+
+    /**
+     * Lets pipelines skip recording the expensive parts of an overlay, e.g. outlines, when nobody will see them.
+     * Only valid during {@link #processFrame(Mat, Mat)}.
+     * @return whether the overlay recorded for the frame being processed will be drawn: false if the display interval
+     *         is 0, the camera view isn't on the screen, there's no camera view (e.g. when replaying), or the display
+     *         interval skips this frame. In async mode, any frame's overlay can be the newest one when the display next
+     *         draws, so then this is the same as {@link #isDisplayVisible()}.
+     * @see #setDisplayInterval(int)
+     */
+    protected boolean isOverlayShown() {
+        JavaCameraView cameraView = this.cameraView;
+        if (!(cameraView instanceof CustomCameraView)) return false;
+        CustomCameraView view = (CustomCameraView) cameraView;
+        return processingThread != null ? view.isDisplayVisible() : view.isFrameDisplayed();
+    }
+
+    /**
+     * Like {@link #isOverlayShown()}, for pipelines that record their overlay later than processFrame, e.g. from
+     * another thread, and so can't tell which frame the display will draw it over. Can be called from any thread.
+     * @return whether the display is drawing frames at all
+     */
+    protected boolean isDisplayVisible() {
+        JavaCameraView cameraView = this.cameraView;
+        return cameraView instanceof CustomCameraView && ((CustomCameraView) cameraView).isDisplayVisible();
+    }
+
+    /**
+     * Chooses how frames are drawn on the screen; this must be called before {@link #init}, which creates the views.
+     * The GL modes take the Bitmap conversion and software scaling of {@link #DISPLAY_CANVAS} off the thread that
+     * processes frames: they only copy the pixels, and a {@link GLFrameView} uploads and draws them on its own thread.
+     * {@link #DISPLAY_GL_LUMA} copies a quarter of the bytes of {@link #DISPLAY_GL} and leaves turning the frame to the
+     * GPU, but shows the plain camera image in gray. The FPS meter is only drawn in {@link #DISPLAY_CANVAS}.
+     * The display interval, scale and visibility settings apply to every mode.
+     * @param mode {@link #DISPLAY_CANVAS}, {@link #DISPLAY_GL} or {@link #DISPLAY_GL_LUMA}
+     * @throws IllegalStateException if init() has already been called
+     */
+    public void setDisplayMode(int mode) {
+        if (mode != DISPLAY_CANVAS && mode != DISPLAY_GL && mode != DISPLAY_GL_LUMA)
+            throw new IllegalArgumentException("Unknown display mode " + mode + "!");
+        if (initStarted) throw new IllegalStateException("The display mode has to be set before init() is called!");
+        displayMode = mode;
+    }
+
+    /**
+     * Records every raw camera frame from now on, or stops recording. Frames are written on the camera thread, so
+     * recording slows the pipeline down; it's meant for capturing a few seconds to replay with {@link ReplayFrameSource}.
+     * The recorder isn't closed when recording stops, that's up to the caller.
+     * @param recorder where to record to, or null to stop recording
+     */
+    public void setFrameRecorder(FrameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Runs frames from a {@link FrameSource} through this pipeline instead of frames from the camera, e.g. to time a
+     * detector on a laptop with a recording from the robot. The pipeline doesn't need to be initialized or enabled,
+     * and without a context the frames are processed as they were recorded (no rotation).
+     * Runs on the calling thread until the source runs out of frames, unless the pipeline is in async mode, in which
+     * case frames are handed to the processing thread like camera frames are.
+     * @param source where to get the frames from
+     * @param realTime true to deliver frames as far apart as they were recorded, false to deliver them as fast as
+     *                 the pipeline can take them (to measure throughput)
+     * @return the number of frames delivered
+     * @throws IOException if the source can't be read
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public long replay(FrameSource source, boolean realTime) throws IOException, InterruptedException {
+        if (async) startProcessingThread();
+        onCameraViewStarted(source.getWidth(), source.getHeight());
+        final ReplayedFrame replayed = new ReplayedFrame();
+        try {
+            return FrameReplayer.replay(source, realTime, new FrameReplayer.Listener() {
+                @Override
+                public void onFrame(CameraFrame frame) {
+                    replayed.frame = frame;
+                    onCameraFrame(replayed);
+                }
+            });
+        } finally {
+            onCameraViewStopped();
+            stopProcessingThread();
+            onProcessingStopped();
+        }
+    }
+
+    /**
+     * Picks the camera's frame size to keep up with a frame rate, instead of using the biggest size that fits the
+     * screen. After each {@link #enable()}, processFrame is timed on a few frames, the biggest supported size that
+     * should still be processed in 1/framesPerSecond is chosen with {@link JavaCameraView#setMaxFrameSize(int, int)},
+     * and the camera is restarted at that size; this is repeated a couple of times to check the guess. Sizes keep the
+     * current aspect ratio, so the camera sees the same area. Only processFrame is timed, so leave some room for the
+     * camera and the display; pipelines that hand frames to other threads from processFrame, e.g. SampleDetector
+     * when pipelined, look cheaper than they are.
+     * Takes effect the next time enable() is called. The chosen size stays set on the camera view after that.
+     * @param framesPerSecond e.g. 15; 0 (the default) to leave the frame size alone
+     */
+    public void setTargetFrameRate(double framesPerSecond) {
+        if (framesPerSecond < 0) throw new IllegalArgumentException("The target frame rate can't be negative!");
+        targetFrameRate = framesPerSecond;
+    }
+
+    private void startSizeProbe(final double framesPerSecond) {
+        final FrameSizeProbe probe = new FrameSizeProbe();
+        sizeProbe = probe;
+        sizeProbeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probeFrameSize(probe, framesPerSecond);
+                } catch (InterruptedException e) {
+                    // disable() was called
+                } finally {
+                    sizeProbe = null;
+                }
+            }
+        }, "OpenCVPipeline frame size probe");
+        sizeProbeThread.setDaemon(true);
+        sizeProbeThread.start();
+    }
+
+    private void stopSizeProbe() {
+        if (sizeProbeThread == null) return;
+        sizeProbeThread.interrupt();
+        try {
+            sizeProbeThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sizeProbeThread = null;
+    }
+
+    // Runs on its own thread, since restarting the camera from one of its callbacks would deadlock
+    private void probeFrameSize(FrameSizeProbe probe, double framesPerSecond) throws InterruptedException {
+        for (int round = 0; round < PROBE_ROUNDS; round++) {
+            double frameNanos = probe.measure(PROBE_WARMUP_FRAMES, PROBE_FRAMES, PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (frameNanos < 0) {
+                Log.w(TAG, "Gave up picking a frame size, too few frames were processed");
+                return;
+            }
+            Size current = new Size(cameraWidth, cameraHeight);
+            Size best = FrameSizeProbe.choose(cameraView.getSupportedFrameSizes(), current, frameNanos, framesPerSecond);
+            Log.i(TAG, String.format(Locale.US, "processFrame takes %.1f ms at %dx%d, so %dx%d should keep up with %.1f fps",
+                    frameNanos / 1e6, (int) current.width, (int) current.height, (int) best.width, (int) best.height, framesPerSecond));
+            // after the first round, only go down, so a size can't bounce back and forth between two guesses
+            if (best.area() == current.area() || (round > 0 && best.area() > current.area())) return;
+            // neither call can be interrupted, so check disable() hasn't been called before restarting the camera
+            synchronized (probeLock) {
+                if (cameraStopped) return;
+                cameraView.setMaxFrameSize((int) best.width, (int) best.height);
+                cameraView.disableView();
+                cameraView.enableView();
+            }
+        }
+    }
+
+    private void startProcessingThread() {
+        if (mailbox == null) {
+            mailbox = new LatestFrameMailbox<>(new FrameSlot[] {new FrameSlot(), new FrameSlot(), new FrameSlot()});
+        }
+        processingWorker = new ProcessingWorker(mailbox);
+        processingThread = new Thread(processingWorker, "OpenCVPipeline processing");
+        processingThread.start();
+    }
+
+    private void stopProcessingThread() {
+        if (processingThread == null) return;
+        // the flag stops the worker even if processFrame swallows the interrupt; the interrupt wakes it up if it's waiting
+        processingWorker.stop();
+        processingThread.interrupt();
+        try {
+            processingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        processingThread = null;
+        processingWorker = null;
     }
 
     /**
@@ -132,12 +961,15 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
     /**
      * This function is called when the camera is started; overriding this may be useful to set the
      * maximum width and height parameters of an image processing pipeline.
+     * If you override this, call super.onCameraViewStarted() so the display rotation is looked up again for the new session.
      * @param width -  the width of the frames that will be delivered
      * @param height - the height of the frames that will be delivered
      */
     @Override
     public void onCameraViewStarted(int width, int height) {
-        // override this if you wish
+        displayRotation = -1;
+        cameraWidth = width;
+        cameraHeight = height;
     }
 
     /**
@@ -148,6 +980,17 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
 
     }
 
+    /**
+     * Called by {@link #disable()}, and at the end of {@link #replay(FrameSource, boolean)}, once processFrame can no
+     * longer be running on any thread, including the processing thread in async mode. Override this to shut down
+     * anything processFrame uses, e.g. worker threads; onCameraViewStopped is too early for that, since in async mode
+     * the last frame can still be processing, and the camera is also restarted while enabled, e.g. by
+     * {@link #setTargetFrameRate(double)}.
+     */
+    protected void onProcessingStopped() {
+
+    }
+
     /**
      * The method that calls {@link #processFrame(Mat, Mat)}; there's little reason to override this, if ever.
      * @param inputFrame the input frame given by the internal JavaCameraView
@@ -155,31 +998,214 @@ public abstract class OpenCVPipeline implements CameraBridgeViewBase.CvCameraVie
      */
     @Override
     public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
-        Mat rgba = new Mat();
-        Mat gray = new Mat();
-        switch (((Activity) context).getWindowManager().getDefaultDisplay().getRotation()) {
-            case Surface.ROTATION_0:
-                // this breaks horribly for some reason
-                Core.rotate(inputFrame.rgba(), rgba, Core.ROTATE_90_CLOCKWISE);
-                Core.rotate(inputFrame.gray(), gray, Core.ROTATE_90_CLOCKWISE);
-                break;
-            case Surface.ROTATION_90:
-                rgba = inputFrame.rgba();
-                gray = inputFrame.gray();
-                break;
-            case Surface.ROTATION_270:
-                Core.rotate(inputFrame.rgba(), rgba, Core.ROTATE_180);
-                Core.rotate(inputFrame.gray(), gray, Core.ROTATE_180);
-                break;
-        }
-        return processFrame(rgba, gray);
+        CountDownLatch firstFrame = this.firstFrame;
+        if (firstFrame != null && firstFrame.getCount() > 0) {
+            timeToFirstFrame = inputFrame.timestamp() - enableTimestamp;
+            Log.i(TAG, "The first frame arrived " + TimeUnit.NANOSECONDS.toMillis(timeToFirstFrame) + " ms after enable()");
+            firstFrame.countDown();
+        }
+        if (displayRotation == -1) {
+            // without a context (i.e. when replaying frames off the phone) frames are left the way they were captured
+            displayRotation = context == null ? Surface.ROTATION_90 : ((Activity) context).getWindowManager().getDefaultDisplay().getRotation();
+        }
+        FrameRecorder recorder = this.recorder;
+        if (recorder != null) {
+            try {
+                recorder.record(inputFrame.yuv(), inputFrame.timestamp());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Couldn't record a frame, recording stopped", e);
+                this.recorder = null;
+            }
+        }
+        int formats = frameFormats;
+        // only the conversions something asked for are done; the frame itself converts each one at most once
+        Mat inputRgba = (formats & FORMAT_RGBA) != 0 ? inputFrame.rgba() : null;
+        Mat inputGray = (formats & FORMAT_GRAY) != 0 ? inputFrame.gray() : null;
+        // without rgba, HSV is converted from the raw frame
+        boolean raw = (formats & FORMAT_RAW) != 0 || (formats & (FORMAT_HSV | FORMAT_RGBA)) == FORMAT_HSV;
+        int scale = processingScale;
+        // read once, on the camera thread, so the size always matches this frame
+        int width = cameraWidth;
+        int height = cameraHeight;
+        Mat rgba = FrameRotation.toDisplay(inputRgba, scaledRgba, rotatedRgba, scale, displayRotation);
+        Mat gray = FrameRotation.toDisplay(inputGray, scaledGray, rotatedGray, scale, displayRotation);
+        // mailbox is always set before processingThread is published, so it's safe to use once the thread is seen
+        if (processingThread != null) {
+            FrameSlot slot = mailbox.producerSlot();
+            if (rgba != null) rgba.copyTo(slot.rgba);
+            if (gray != null) gray.copyTo(slot.gray);
+            if (raw) slot.setRaw(inputFrame);
+            slot.width = width;
+            slot.height = height;
+            slot.formats = formats;
+            slot.scale = scale;
+            slot.timestamp = inputFrame.timestamp();
+            slot.sequence = inputFrame.sequence();
+            mailbox.publish();
+            return rgba;
+        }
+        rawFrame = raw ? inputFrame.yuv() : null;
+        rawFrameData = raw ? inputFrame.yuvData() : null;
+        rawFrameWidth = width;
+        rawFrameHeight = height;
+        hsvEnabled = (formats & FORMAT_HSV) != 0;
+        hsvSource = rgba;
+        hsvScale = scale;
+        hsvValid = false;
+        frameTimestamp = inputFrame.timestamp();
+        frameSequence = inputFrame.sequence();
+        long start = processFrameTimer.start();
+        Mat result = processFrame(rgba, gray);
+        processFrameDone(start);
+        rawFrame = null;
+        rawFrameData = null;
+        rawFrameWidth = 0;
+        rawFrameHeight = 0;
+        hsvEnabled = false;
+        hsvSource = null;
+        processedFrames.incrementAndGet();
+        if (autoPublishFrames) publishFrame();
+        return result;
+    }
+
+    // Times processFrame for the stats and, while a frame size is being picked, for the probe
+    private void processFrameDone(long start) {
+        processFrameTimer.stop(start);
+        FrameSizeProbe probe = sizeProbe;
+        if (probe != null) probe.record(System.nanoTime() - start);
     }
 
     /**
      * Override this with the main image processing logic. This is run every time the camera recieves a frame.
-     * @param rgba a {@link Mat} that is in RGBA format
-     * @param gray a {@link Mat} that is already grayscale
+     * @param rgba a {@link Mat} that is in RGBA format, or null if it wasn't asked for with {@link #setFrameFormats(int)}
+     * @param gray a {@link Mat} that is already grayscale, or null if it wasn't asked for
      * @return the Mat that should be displayed to the screen; in most cases one would probably just want to return rgba
      */
     public abstract Mat processFrame(Mat rgba, Mat gray);
+
+    /**
+     * The preallocated copy of a frame that is handed to the processing thread in async mode.
+     */
+    private static class FrameSlot {
+        final Mat rgba = new Mat();
+        final Mat gray = new Mat();
+        int formats;
+        int scale;
+        long timestamp;
+        long sequence;
+        // the camera size of this frame, before rotating or scaling
+        int width;
+        int height;
+        // The raw frame is kept as bytes when the camera provides them, and only put into the Mat when asked for
+        private final Mat raw = new Mat();
+        private byte[] rawBytes = new byte[0];
+        byte[] rawData;
+        private boolean rawStale;
+
+        void setRaw(CameraBridgeViewBase.CvCameraViewFrame frame) {
+            byte[] data = frame.yuvData();
+            if (data == null) {
+                frame.yuv().copyTo(raw);
+                rawData = null;
+                rawStale = false;
+                return;
+            }
+            if (rawBytes.length != data.length) rawBytes = new byte[data.length];
+            System.arraycopy(data, 0, rawBytes, 0, data.length);
+            rawData = rawBytes;
+            rawStale = true;
+        }
+
+        Mat raw() {
+            if (rawStale) {
+                raw.create(height * 3 / 2, width, CvType.CV_8UC1);
+                raw.put(0, 0, rawData);
+                rawStale = false;
+            }
+            return raw;
+        }
+    }
+
+    /**
+     * Shows a replayed frame to {@link #onCameraFrame} as if it came from the camera; one is reused for every frame.
+     */
+    private static class ReplayedFrame implements CameraBridgeViewBase.CvCameraViewFrame {
+        CameraFrame frame;
+
+        @Override
+        public Mat rgba() {
+            return frame.rgba();
+        }
+
+        @Override
+        public Mat gray() {
+            return frame.gray();
+        }
+
+        @Override
+        public Mat yuv() {
+            return frame.yuv();
+        }
+
+        @Override
+        public byte[] yuvData() {
+            return frame.yuvData();
+        }
+
+        @Override
+        public long timestamp() {
+            return frame.timestamp();
+        }
+
+        @Override
+        public long sequence() {
+            return frame.sequence();
+        }
+    }
+
+    private class ProcessingWorker implements Runnable {
+        private final LatestFrameMailbox<FrameSlot> mailbox;
+        private volatile boolean stopped = false;
+
+        ProcessingWorker(LatestFrameMailbox<FrameSlot> mailbox) {
+            this.mailbox = mailbox;
+        }
+
+        // Checked before every frame, since take() only notices the interrupt while no frame is waiting
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            FrameSlot slot;
+            while (!stopped && (slot = mailbox.take()) != null) {
+                int formats = slot.formats;
+                boolean raw = (formats & FORMAT_RAW) != 0 || (formats & (FORMAT_HSV | FORMAT_RGBA)) == FORMAT_HSV;
+                boolean rgba = (formats & FORMAT_RGBA) != 0;
+                rawFrameSlot = raw ? slot : null;
+                rawFrameData = raw ? slot.rawData : null;
+                rawFrameWidth = slot.width;
+                rawFrameHeight = slot.height;
+                hsvEnabled = (formats & FORMAT_HSV) != 0;
+                hsvSource = rgba ? slot.rgba : null;
+                hsvScale = slot.scale;
+                hsvValid = false;
+                frameTimestamp = slot.timestamp;
+                frameSequence = slot.sequence;
+                long start = processFrameTimer.start();
+                processFrame(rgba ? slot.rgba : null, (formats & FORMAT_GRAY) != 0 ? slot.gray : null);
+                processFrameDone(start);
+                rawFrame = null;
+                rawFrameData = null;
+                rawFrameSlot = null;
+                rawFrameWidth = 0;
+                rawFrameHeight = 0;
+                hsvEnabled = false;
+                hsvSource = null;
+                processedFrames.incrementAndGet();
+                if (autoPublishFrames) publishFrame();
+            }
+        }
+    }
 }
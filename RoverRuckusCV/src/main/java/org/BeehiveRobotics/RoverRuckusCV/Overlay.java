@@ -0,0 +1,163 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.MatOfPoint;
+
+import java.util.Arrays;
+
+/**
+ * Boxes, outlines and text to draw over the frames on the screen, recorded as a list of commands instead of being
+ * drawn into the processed Mat. Recording a command only stores a few numbers, so the drawing itself is left to the
+ * display, which only does it for the frames it actually shows, on a Canvas or over the GL view.
+ *
+ * A pipeline records each frame's overlay between {@link #begin(int, int)} and {@link #commit()}, in the coordinates
+ * of the frames passed to processFrame. Committed overlays are handed to the display through a
+ * {@link LatestFrameMailbox}, so recording never waits for drawing, and the display always draws the newest one.
+ * Only one thread may record at a time, and only one may draw.
+ *
+ * Colors are ARGB ints, like android.graphics.Color, e.g. 0xFFFF0000 for red.
+ *
+ * Recording only uses plain Java, so it also runs off the phone; {@link OverlayPainter} does the drawing on the phone.
+ */
+public class Overlay {
+    static final int BOX = 0;
+    static final int LINES = 1;
+    static final int TEXT = 2;
+
+    private final LatestFrameMailbox<Commands> mailbox =
+            new LatestFrameMailbox<>(new Commands[] { new Commands(), new Commands(), new Commands() });
+
+    // Only touched by the recording thread
+    private Commands recording;
+    private int[] points = new int[0];
+
+    // Only touched by the drawing thread
+    private Commands showing;
+
+    /**
+     * Starts recording the overlay for a new frame, discarding anything recorded since the last commit.
+     * @param width the width of the frame the coordinates refer to
+     * @param height the height of the frame the coordinates refer to
+     */
+    public void begin(int width, int height) {
+        recording = mailbox.producerSlot();
+        recording.clear();
+        recording.width = width;
+        recording.height = height;
+    }
+
+    /**
+     * Outlines a rectangle.
+     */
+    public void box(int x, int y, int width, int height, int color, float thickness) {
+        Commands commands = recording();
+        float[] coords = commands.add(BOX, color, thickness, null, 4);
+        int start = commands.coordCount - 4;
+        coords[start] = x;
+        coords[start + 1] = y;
+        coords[start + 2] = x + width;
+        coords[start + 3] = y + height;
+    }
+
+    /**
+     * Draws the lines between the points of a contour, like Imgproc.drawContours does for one contour.
+     * @param closed whether to also join the last point back to the first
+     */
+    public void polyline(MatOfPoint contour, boolean closed, int color, float thickness) {
+        int count = (int) contour.total();
+        if (count < 2) return;
+        if (points.length < count * 2) points = new int[count * 2];
+        contour.get(0, 0, points);
+        int segments = closed ? count : count - 1;
+        Commands commands = recording();
+        // stored as the start and end of every segment, so the whole polyline is one Canvas.drawLines call
+        float[] coords = commands.add(LINES, color, thickness, null, segments * 4);
+        int out = commands.coordCount - segments * 4;
+        for (int i = 0; i < segments; i++) {
+            int next = (i + 1) % count;
+            coords[out++] = points[i * 2];
+            coords[out++] = points[i * 2 + 1];
+            coords[out++] = points[next * 2];
+            coords[out++] = points[next * 2 + 1];
+        }
+    }
+
+    /**
+     * Draws text with its baseline starting at (x, y).
+     * @param size the height of the text, in frame pixels
+     */
+    public void text(String text, float x, float y, int color, float size) {
+        Commands commands = recording();
+        float[] coords = commands.add(TEXT, color, size, text, 2);
+        int start = commands.coordCount - 2;
+        coords[start] = x;
+        coords[start + 1] = y;
+    }
+
+    /**
+     * Hands the overlay recorded since {@link #begin(int, int)} to the display, replacing the previous one.
+     */
+    public void commit() {
+        recording();
+        recording = null;
+        mailbox.publish();
+    }
+
+    private Commands recording() {
+        if (recording == null) throw new IllegalStateException("begin() needs to be called before recording an overlay!");
+        return recording;
+    }
+
+    // The newest committed overlay, or null if there's nothing to draw; only called by the drawing thread
+    Commands showing() {
+        Commands latest = mailbox.poll();
+        if (latest != null) showing = latest;
+        if (showing == null || showing.width == 0 || showing.height == 0) return null;
+        return showing;
+    }
+
+    /**
+     * One frame's overlay. The arrays only grow, so recording stops allocating after the first few frames.
+     */
+    static class Commands {
+        int width;
+        int height;
+        int count;
+        int[] types = new int[16];
+        int[] colors = new int[16];
+        float[] sizes = new float[16];
+        int[] lengths = new int[16];
+        String[] texts = new String[16];
+        float[] coords = new float[256];
+        int coordCount;
+
+        void clear() {
+            // the strings are constants in practice, but there's no reason to keep them alive
+            for (int i = 0; i < count; i++) texts[i] = null;
+            count = 0;
+            coordCount = 0;
+        }
+
+        // Adds a command with room for length coordinates, and returns the coordinate array to write them into
+        float[] add(int type, int color, float size, String text, int length) {
+            if (count == types.length) {
+                int capacity = count * 2;
+                types = Arrays.copyOf(types, capacity);
+                colors = Arrays.copyOf(colors, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+            if (coordCount + length > coords.length) {
+                coords = Arrays.copyOf(coords, Math.max(coords.length * 2, coordCount + length));
+            }
+            types[count] = type;
+            colors[count] = color;
+            sizes[count] = size;
+            lengths[count] = length;
+            texts[count] = text;
+            count++;
+            coordCount += length;
+            return coords;
+        }
+    }
+}
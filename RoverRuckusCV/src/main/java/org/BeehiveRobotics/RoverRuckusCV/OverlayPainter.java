@@ -0,0 +1,67 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Draws the newest committed {@link Overlay} on a Canvas. Each display keeps one, on the thread that draws, since an
+ * overlay may only be drawn by one thread.
+ */
+public class OverlayPainter {
+    private final Paint paint = new Paint();
+
+    /**
+     * Draws the newest committed overlay, stretched so the frame it was recorded for fills the given rectangle.
+     * @return false if nothing has been committed yet
+     */
+    public boolean draw(Overlay overlay, Canvas canvas, float left, float top, float width, float height) {
+        Overlay.Commands commands = overlay.showing();
+        if (commands == null) return false;
+        draw(commands, canvas, left, top, width, height);
+        return true;
+    }
+
+    /**
+     * Like {@link #draw(Overlay, Canvas, float, float, float, float)}, but keeps the frame's aspect ratio and centers it
+     * in a view of the given size, the same way {@link GLFrameView} places frames.
+     */
+    public boolean drawCentered(Overlay overlay, Canvas canvas, int viewWidth, int viewHeight) {
+        Overlay.Commands commands = overlay.showing();
+        if (commands == null) return false;
+        float scale = Math.min(viewWidth / (float) commands.width, viewHeight / (float) commands.height);
+        float width = Math.round(commands.width * scale);
+        float height = Math.round(commands.height * scale);
+        draw(commands, canvas, (int) (viewWidth - width) / 2, (int) (viewHeight - height) / 2, width, height);
+        return true;
+    }
+
+    private void draw(Overlay.Commands commands, Canvas canvas, float left, float top, float width, float height) {
+        canvas.save();
+        canvas.translate(left, top);
+        canvas.scale(width / commands.width, height / commands.height);
+        float[] coords = commands.coords;
+        int coord = 0;
+        for (int i = 0; i < commands.count; i++) {
+            paint.setColor(commands.colors[i]);
+            switch (commands.types[i]) {
+                case Overlay.BOX:
+                    paint.setStyle(Paint.Style.STROKE);
+                    paint.setStrokeWidth(commands.sizes[i]);
+                    canvas.drawRect(coords[coord], coords[coord + 1], coords[coord + 2], coords[coord + 3], paint);
+                    break;
+                case Overlay.LINES:
+                    paint.setStyle(Paint.Style.STROKE);
+                    paint.setStrokeWidth(commands.sizes[i]);
+                    canvas.drawLines(coords, coord, commands.lengths[i], paint);
+                    break;
+                case Overlay.TEXT:
+                    paint.setStyle(Paint.Style.FILL);
+                    paint.setTextSize(commands.sizes[i]);
+                    canvas.drawText(commands.texts[i], coords[coord], coords[coord + 1], paint);
+                    break;
+            }
+            coord += commands.lengths[i];
+        }
+        canvas.restore();
+    }
+}
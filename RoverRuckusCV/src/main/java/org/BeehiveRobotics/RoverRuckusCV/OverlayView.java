@@ -0,0 +1,24 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.View;
+
+/**
+ * Draws an {@link Overlay} over a {@link GLFrameView}. It's an ordinary view, so the overlay is drawn on the UI thread
+ * by Android's hardware accelerated canvas, and {@link #postInvalidate()} is all the display thread has to do.
+ */
+public class OverlayView extends View {
+    private final Overlay overlay;
+    private final OverlayPainter painter = new OverlayPainter();
+
+    public OverlayView(Context context, Overlay overlay) {
+        super(context);
+        this.overlay = overlay;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        painter.drawCentered(overlay, canvas, getWidth(), getHeight());
+    }
+}
@@ -0,0 +1,200 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back NV21 frames recorded with {@link FrameRecorder}.
+ * The file is memory-mapped, so nothing is read up front; the operating system pages frames in as they're used.
+ * Each frame is copied out of the mapping into one buffer that a single Mat is built over, so playing back doesn't
+ * make a new Mat per frame, and pipelines can draw on the frames without changing the recording.
+ *
+ * The file is a 16 byte header (the magic number, the format version, the width and the height, as big-endian ints),
+ * followed by one record per frame: the timestamp in nanoseconds as a big-endian long, then the NV21 data.
+ *
+ * This only uses plain Java, so it also runs off the phone.
+ */
+public class ReplayFrameSource implements FrameSource {
+    static final int MAGIC = 0x4E563231; // "NV21"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int TIMESTAMP_SIZE = 8;
+
+    // how much of the file is mapped at once; recordings can be bigger than one mapping can hold
+    private static final long CHUNK_SIZE = 256L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int recordSize;
+    private final long frameCount;
+    private final long framesPerChunk;
+
+    private MappedByteBuffer chunk;
+    private long chunkIndex = -1;
+    private long nextIndex = 0;
+    private long timestamp;
+    private final ReplayFrame frame = new ReplayFrame();
+
+    /**
+     * @param file a recording made with {@link FrameRecorder}
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    public ReplayFrameSource(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                close();
+                throw new IOException(file + " is too short to be a frame recording");
+            }
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            close();
+            throw new IOException(file + " isn't a frame recording");
+        }
+        width = header.getInt(8);
+        height = header.getInt(12);
+        recordSize = TIMESTAMP_SIZE + width * height * 3 / 2;
+        frameCount = (channel.size() - HEADER_SIZE) / recordSize;
+        framesPerChunk = Math.max(1, CHUNK_SIZE / recordSize);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of whole frames in the recording
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Goes back to the first frame, e.g. to play the recording again.
+     */
+    public void rewind() {
+        nextIndex = 0;
+    }
+
+    @Override
+    public CameraFrame nextFrame() throws IOException {
+        if (nextIndex >= frameCount) return null;
+        long index = nextIndex++;
+        long wantedChunk = index / framesPerChunk;
+        if (wantedChunk != chunkIndex) {
+            long start = HEADER_SIZE + wantedChunk * framesPerChunk * recordSize;
+            long length = Math.min(framesPerChunk, frameCount - wantedChunk * framesPerChunk) * recordSize;
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            chunk.order(ByteOrder.BIG_ENDIAN);
+            chunkIndex = wantedChunk;
+        }
+        int offset = (int) ((index % framesPerChunk) * recordSize);
+        chunk.clear();
+        timestamp = chunk.getLong(offset);
+        chunk.position(offset + TIMESTAMP_SIZE);
+        chunk.limit(offset + recordSize);
+        frame.set(chunk, index);
+        return frame;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        frame.release();
+        chunk = null;
+        file.close();
+    }
+
+    private class ReplayFrame implements CameraFrame {
+        // the current frame's NV21 data, with yuv and gray built over it once
+        private ByteBuffer buffer;
+        private Mat yuv;
+        private Mat gray;
+        private final Mat rgba = new Mat();
+        private boolean rgbaValid;
+        private long arrived;
+        private long sequence;
+
+        void set(ByteBuffer data, long index) {
+            // latency is measured from when the frame is handed over, like a live camera, not from the recorded time
+            arrived = System.nanoTime();
+            sequence = index;
+            rgbaValid = false;
+            if (yuv == null) {
+                // a direct buffer, so the Mat uses its memory instead of a copy, and sees every frame put into it
+                buffer = ByteBuffer.allocateDirect(data.remaining());
+                yuv = new Mat(height * 3 / 2, width, CvType.CV_8UC1, buffer);
+                gray = yuv.submat(0, height, 0, width);
+            }
+            buffer.clear();
+            buffer.put(data);
+        }
+
+        @Override
+        public Mat rgba() {
+            if (!rgbaValid) {
+                Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+                rgbaValid = true;
+            }
+            return rgba;
+        }
+
+        @Override
+        public Mat gray() {
+            return gray;
+        }
+
+        @Override
+        public Mat yuv() {
+            return yuv;
+        }
+
+        @Override
+        public byte[] yuvData() {
+            // the data is in the mapped file, not a byte array
+            return null;
+        }
+
+        @Override
+        public long timestamp() {
+            return arrived;
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        void release() {
+            if (gray != null) gray.release();
+            if (yuv != null) yuv.release();
+            rgba.release();
+            gray = null;
+            yuv = null;
+            buffer = null;
+        }
+    }
+}
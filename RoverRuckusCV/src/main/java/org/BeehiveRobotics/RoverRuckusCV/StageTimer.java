@@ -0,0 +1,120 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import java.util.Locale;
+
+/**
+ * Times one stage of a pipeline into a {@link LatencyHistogram}. Get one from
+ * {@link OpenCVPipeline#getStageTimer(String)} once, keep it in a field, and wrap the stage like this:
+ * <pre>
+ *     long start = convertTimer.start();
+ *     Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV);
+ *     convertTimer.stop(start);
+ * </pre>
+ * The timer keeps no per-call state, so the same one can be used from several threads at once, and timing
+ * never allocates.
+ */
+public class StageTimer {
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    StageTimer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the stage
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the time the stage started, to pass to {@link #stop(long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records how long the stage took.
+     * @param start what {@link #start()} returned
+     */
+    public void stop(long start) {
+        histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the stage's latencies so far
+     */
+    public Stats getStats() {
+        return new Stats(name, histogram.getCount(), histogram.getMean(), histogram.getPercentile(50),
+                histogram.getPercentile(90), histogram.getPercentile(99), histogram.getMax());
+    }
+
+    /**
+     * Forgets the latencies recorded so far, e.g. at the start of a match.
+     */
+    public void reset() {
+        histogram.reset();
+    }
+
+    /**
+     * A stage's latencies at one point in time. All times are in milliseconds.
+     */
+    public static class Stats {
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        Stats(String name, long count, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+            this.name = name;
+            this.count = count;
+            this.mean = meanNanos / 1e6;
+            this.p50 = p50Nanos / 1e6;
+            this.p90 = p90Nanos / 1e6;
+            this.p99 = p99Nanos / 1e6;
+            this.max = maxNanos / 1e6;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return p50;
+        }
+
+        public double get90thPercentile() {
+            return p90;
+        }
+
+        public double get99thPercentile() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        /**
+         * @return a one line summary, e.g. for telemetry
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    name, count, mean, p50, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Runs an image processing pipeline as a chain of stages, each on its own worker thread(s), so that
+ * frame N+1 can be in an early stage while frame N is still in a later one.
+ * This makes use of more than one core for a single detector: the per-frame latency stays about the same,
+ * but throughput goes up to roughly the speed of the slowest stage.
+ *
+ * A fixed pool of preallocated buffers is passed from stage to stage through bounded ring queues, so nothing is
+ * allocated per frame. Each submitted buffer gets a sequence number, and buffers are handed to the {@link Sink}
+ * in sequence order even when a stage runs several workers and finishes frames out of order.
+ * When all buffers are in flight, {@link #acquire()} returns null and the caller should just drop that frame.
+ *
+ * Typical use from {@link OpenCVPipeline#processFrame(org.opencv.core.Mat, org.opencv.core.Mat)}:
+ * <pre>
+ *     MyBuffer buffer = executor.acquire();
+ *     if (buffer != null) {
+ *         rgba.copyTo(buffer.input);
+ *         executor.submit(buffer);
+ *     }
+ * </pre>
+ * @param <T> the type of the per-frame working set passed between stages
+ */
+public class StagedExecutor<T extends StagedExecutor.Buffer> {
+    private static final String TAG = "StagedExecutor";
+
+    /**
+     * One step of the pipeline. A stage only touches the buffer it's given, so different stages never share state.
+     */
+    public interface Stage<T> {
+        void process(T buffer);
+    }
+
+    /**
+     * Receives finished buffers in sequence order. The buffer is recycled as soon as this returns,
+     * so results that need to outlive the call must be copied out.
+     */
+    public interface Sink<T> {
+        void onComplete(T buffer);
+    }
+
+    /**
+     * Base class for the preallocated per-frame working sets that move through the stages.
+     */
+    public static abstract class Buffer {
+        long sequence;
+        boolean failed;
+
+        /**
+         * @return the sequence number this buffer was submitted with
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private final T[] buffers;
+    private final Sink<T> sink;
+    private final List<StageEntry> stages = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final ArrayBlockingQueue<T> free;
+    private final ArrayBlockingQueue<T> completed;
+    private long nextSequence = 0;
+
+    /**
+     * @param buffers the preallocated buffers; their number is the maximum number of frames in flight at once
+     * @param sink receives the finished buffers in the order they were submitted
+     */
+    public StagedExecutor(T[] buffers, Sink<T> sink) {
+        this.buffers = buffers;
+        this.sink = sink;
+        free = new ArrayBlockingQueue<>(buffers.length);
+        completed = new ArrayBlockingQueue<>(buffers.length);
+    }
+
+    /**
+     * Adds a stage with a single worker thread. Stages run in the order they are added.
+     * @param name the name of the stage, used for its worker thread(s)
+     * @param stage the stage
+     * @return this, so stages can be chained
+     */
+    public StagedExecutor<T> addStage(String name, Stage<T> stage) {
+        return addStage(name, stage, 1);
+    }
+
+    /**
+     * Adds a stage. Stages run in the order they are added.
+     * @param name the name of the stage, used for its worker thread(s)
+     * @param stage the stage; with more than one worker it must be safe to call concurrently on different buffers
+     * @param workers the number of worker threads for this stage
+     * @return this, so stages can be chained
+     */
+    public synchronized StagedExecutor<T> addStage(String name, Stage<T> stage, int workers) {
+        if (!threads.isEmpty()) throw new IllegalStateException("Stages can't be added to a running StagedExecutor!");
+        stages.add(new StageEntry(name, stage, workers, new ArrayBlockingQueue<T>(buffers.length)));
+        return this;
+    }
+
+    /**
+     * Starts the worker threads. All buffers are returned to the free pool and the sequence restarts at 0.
+     */
+    public synchronized void start() {
+        if (!threads.isEmpty()) return;
+        if (stages.isEmpty()) throw new IllegalStateException("A StagedExecutor needs at least one stage!");
+        free.clear();
+        completed.clear();
+        for (T buffer : buffers) {
+            buffer.failed = false;
+            free.add(buffer);
+        }
+        nextSequence = 0;
+
+        for (int i = 0; i < stages.size(); i++) {
+            StageEntry entry = stages.get(i);
+            entry.input.clear();
+            ArrayBlockingQueue<T> output = i + 1 < stages.size() ? stages.get(i + 1).input : completed;
+            for (int w = 0; w < entry.workers; w++) {
+                threads.add(new Thread(new StageWorker(entry, output), entry.name + " " + w));
+            }
+        }
+        threads.add(new Thread(new SinkWorker(), "StagedExecutor sink"));
+        for (Thread thread : threads) thread.start();
+    }
+
+    /**
+     * Stops all worker threads and waits for them to exit. Frames still in flight are discarded.
+     */
+    public synchronized void stop() {
+        for (Thread thread : threads) thread.interrupt();
+        try {
+            for (Thread thread : threads) thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        threads.clear();
+    }
+
+    /**
+     * @return whether the worker threads are running
+     */
+    public synchronized boolean isRunning() {
+        return !threads.isEmpty();
+    }
+
+    /**
+     * Takes a free buffer to fill with the next frame. Never blocks.
+     * @return a free buffer, or null if every buffer is currently in flight
+     */
+    public T acquire() {
+        return free.poll();
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire()} to the first stage.
+     * Must be called from a single thread, normally the one calling processFrame.
+     * @param buffer the filled buffer
+     * @return the sequence number assigned to the buffer
+     */
+    public long submit(T buffer) {
+        buffer.sequence = nextSequence++;
+        buffer.failed = false;
+        // can't block: there are never more buffers than the queue can hold
+        stages.get(0).input.offer(buffer);
+        return buffer.sequence;
+    }
+
+    private class StageEntry {
+        final String name;
+        final Stage<T> stage;
+        final int workers;
+        final ArrayBlockingQueue<T> input;
+
+        StageEntry(String name, Stage<T> stage, int workers, ArrayBlockingQueue<T> input) {
+            this.name = name;
+            this.stage = stage;
+            this.workers = workers;
+            this.input = input;
+        }
+    }
+
+    private class StageWorker implements Runnable {
+        private final StageEntry entry;
+        private final ArrayBlockingQueue<T> output;
+
+        StageWorker(StageEntry entry, ArrayBlockingQueue<T> output) {
+            this.entry = entry;
+            this.output = output;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    T buffer = entry.input.take();
+                    if (!buffer.failed) {
+                        try {
+                            entry.stage.process(buffer);
+                        } catch (RuntimeException e) {
+                            // keep the buffer moving so the sink doesn't wait on its sequence number forever
+                            Log.e(TAG, "Stage " + entry.name + " failed on frame " + buffer.sequence, e);
+                            buffer.failed = true;
+                        }
+                    }
+                    output.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                // stop() was called
+            }
+        }
+    }
+
+    private class SinkWorker implements Runnable {
+        @Override
+        public void run() {
+            // buffers that finished ahead of an earlier sequence number wait here, indexed by sequence modulo the pool size
+            Object[] pending = new Object[buffers.length];
+            long expected = 0;
+            try {
+                while (true) {
+                    T buffer = completed.take();
+                    pending[(int) (buffer.sequence % pending.length)] = buffer;
+                    while (true) {
+                        int index = (int) (expected % pending.length);
+                        @SuppressWarnings("unchecked")
+                        T next = (T) pending[index];
+                        if (next == null || next.sequence != expected) break;
+                        pending[index] = null;
+                        if (!next.failed) {
+                            try {
+                                sink.onComplete(next);
+                            } catch (RuntimeException e) {
+                                Log.e(TAG, "Sink failed on frame " + next.sequence, e);
+                            }
+                        }
+                        free.put(next);
+                        expected++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop() was called
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.opencv.core.Scalar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A colour classification lookup table indexed by quantised Y, U and V values.
+ * It's built once from a set of HSV ranges (the same ones you'd pass to Core.inRange), after which a single pass over
+ * a raw NV21 camera frame labels every pixel, replacing the NV21 -> RGBA -> HSV conversions and the inRange passes.
+ *
+ * Each entry is a bit mask with bit c set when that YUV colour falls inside HSV range c, so up to 8 ranges fit in one table.
+ * Tables can be saved to a file and memory-mapped back in with {@link #load(File, Scalar[], Scalar[])}, so they don't
+ * have to be rebuilt every time the robot controller starts.
+ *
+ * This only uses plain Java (and the pure-Java Scalar), so it also runs off the phone.
+ */
+public class YuvColorTable {
+    // how many bits of each of Y, U and V index the table; 6 bits each makes a 256KiB table
+    public static final int BITS = 6;
+    private static final int SHIFT = 8 - BITS;
+    private static final int SIZE = 1 << (3 * BITS);
+
+    private static final int MAGIC = 0x59555654; // "YUVT"
+    // magic, bits, and a hash of the HSV ranges the table was built from
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    private final ByteBuffer table;
+    private final long rangeHash;
+
+    private YuvColorTable(ByteBuffer table, long rangeHash) {
+        this.table = table;
+        this.rangeHash = rangeHash;
+    }
+
+    /**
+     * Builds a table from HSV ranges. H is [0,179], both S and V are [0,255], like OpenCV's 8 bit HSV.
+     * @param lows the lower bound of each range, inclusive
+     * @param highs the upper bound of each range, inclusive
+     * @return the table; pixels in range c get bit c set
+     */
+    public static YuvColorTable build(Scalar[] lows, Scalar[] highs) {
+        if (lows.length != highs.length) throw new IllegalArgumentException("There must be as many lows as highs!");
+        if (lows.length > 8) throw new IllegalArgumentException("A YuvColorTable can only hold 8 colour ranges!");
+        byte[] table = new byte[SIZE];
+        int[] hsv = new int[3];
+        // classify the centre of every cell
+        int half = 1 << (SHIFT - 1);
+        for (int y = 0; y < (1 << BITS); y++) {
+            for (int u = 0; u < (1 << BITS); u++) {
+                for (int v = 0; v < (1 << BITS); v++) {
+                    yuvToHsv((y << SHIFT) + half, (u << SHIFT) + half, (v << SHIFT) + half, hsv);
+                    int label = 0;
+                    for (int c = 0; c < lows.length; c++) {
+                        if (inRange(hsv, lows[c], highs[c])) label |= 1 << c;
+                    }
+                    table[index(y, u, v)] = (byte) label;
+                }
+            }
+        }
+        return new YuvColorTable(ByteBuffer.wrap(table), rangeHash(lows, highs));
+    }
+
+    /**
+     * Memory-maps a table saved with {@link #save(File)}.
+     * @param file the file to load
+     * @param lows the lower bounds the table is expected to have been built from
+     * @param highs the upper bounds the table is expected to have been built from
+     * @return the table, or null if the file doesn't exist or was built from different ranges
+     * @throws IOException if the file can't be read
+     */
+    public static YuvColorTable load(File file, Scalar[] lows, Scalar[] highs) throws IOException {
+        if (!file.isFile() || file.length() != HEADER_SIZE + SIZE) return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + SIZE);
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            long hash = rangeHash(lows, highs);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != BITS || mapped.getLong(8) != hash) return null;
+            mapped.position(HEADER_SIZE);
+            return new YuvColorTable(mapped.slice(), hash);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Saves the table so it can be memory-mapped with {@link #load(File, Scalar[], Scalar[])} later.
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(BITS).putLong(rangeHash).flip();
+        ByteBuffer body = table.duplicate();
+        body.clear();
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            FileChannel channel = os.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (body.hasRemaining()) channel.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * @return the label bits of a single YUV colour
+     */
+    public int label(int y, int u, int v) {
+        return table.get(index(y >> SHIFT, u >> SHIFT, v >> SHIFT)) & 0xff;
+    }
+
+    /**
+     * Labels every pixel of an NV21 frame in a single pass. masks[c] gets 255 wherever the pixel is in colour range c
+     * and 0 everywhere else, in the same layout as the Y plane.
+     * @param nv21 the frame: width*height bytes of Y, then width*height/2 bytes of interleaved V and U
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @param masks one width*height array for each colour range to extract
+     */
+    public void classify(byte[] nv21, int width, int height, byte[][] masks) {
+        classify(nv21, width, height, 0, 0, width, height, 1, masks);
+    }
+
+    /**
+     * Labels the pixels of one region of an NV21 frame in a single pass, optionally only looking at every step-th pixel
+     * of every step-th row so the masks come out smaller than the frame without resizing it first.
+     * masks[c] gets 255 wherever the pixel is in colour range c and 0 everywhere else, row by row with regionWidth
+     * pixels per row.
+     * @param nv21 the frame: width*height bytes of Y, then width*height/2 bytes of interleaved V and U
+     * @param width the width of the whole frame
+     * @param height the height of the whole frame
+     * @param left the left edge of the region, in frame pixels
+     * @param top the top edge of the region, in frame pixels
+     * @param regionWidth the width of the masks; the region covers regionWidth*step frame pixels
+     * @param regionHeight the height of the masks; the region covers regionHeight*step frame pixels
+     * @param step 1 to label every pixel, 2 for every other pixel of every other row, and so on
+     * @param masks one regionWidth*regionHeight array for each colour range to extract
+     */
+    public void classify(byte[] nv21, int width, int height, int left, int top, int regionWidth, int regionHeight, int step, byte[][] masks) {
+        final ByteBuffer table = this.table;
+        final int frameSize = width * height;
+        final int classes = masks.length;
+        for (int row = 0; row < regionHeight; row++) {
+            final int frameRow = top + row * step;
+            final int yRow = frameRow * width;
+            final int uvRow = frameSize + (frameRow >> 1) * width;
+            final int maskRow = row * regionWidth;
+            for (int col = 0; col < regionWidth; col++) {
+                final int x = left + col * step;
+                final int uv = uvRow + (x & ~1);
+                final int y = (nv21[yRow + x] & 0xff) >> SHIFT;
+                final int v = (nv21[uv] & 0xff) >> SHIFT;
+                final int u = (nv21[uv + 1] & 0xff) >> SHIFT;
+                final int label = table.get(index(y, u, v));
+                for (int c = 0; c < classes; c++) {
+                    // 0 or -1, i.e. 0 or 255
+                    masks[c][maskRow + col] = (byte) -((label >> c) & 1);
+                }
+            }
+        }
+    }
+
+    private static int index(int y, int u, int v) {
+        return (y << (2 * BITS)) | (u << BITS) | v;
+    }
+
+    private static boolean inRange(int[] hsv, Scalar low, Scalar high) {
+        for (int i = 0; i < 3; i++) {
+            if (hsv[i] < low.val[i] || hsv[i] > high.val[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converts one YUV colour to 8 bit HSV the same way Imgproc.cvtColor does for COLOR_YUV2RGB_NV21 followed by
+     * COLOR_RGB2HSV (BT.601 video range YUV, H in [0,179]).
+     */
+    static void yuvToHsv(int y, int u, int v, int[] hsv) {
+        double luma = 1.164 * Math.max(y - 16, 0);
+        int r = clamp(luma + 1.596 * (v - 128));
+        int g = clamp(luma - 0.813 * (v - 128) - 0.391 * (u - 128));
+        int b = clamp(luma + 2.018 * (u - 128));
+
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int diff = max - min;
+
+        double h;
+        if (diff == 0) h = 0;
+        else if (max == r) h = 60.0 * (g - b) / diff;
+        else if (max == g) h = 60.0 * (b - r) / diff + 120;
+        else h = 60.0 * (r - g) / diff + 240;
+        if (h < 0) h += 360;
+
+        hsv[0] = (int) Math.round(h / 2) % 180;
+        hsv[1] = max == 0 ? 0 : (int) Math.round(255.0 * diff / max);
+        hsv[2] = max;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static long rangeHash(Scalar[] lows, Scalar[] highs) {
+        long hash = lows.length;
+        for (int c = 0; c < lows.length; c++) {
+            for (int i = 0; i < 3; i++) {
+                hash = hash * 31 + Double.doubleToLongBits(lows[c].val[i]);
+                hash = hash * 31 + Double.doubleToLongBits(highs[c].val[i]);
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,65 @@
+package org.BeehiveRobotics.RoverRuckusCV.benchmarks;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the processFrame of examples/ExampleBlueVision.java, step for step, on a fixed frame with a blue ball in it,
+ * laid out like the frames of {@link SampleDetectorBenchmark}.
+ */
+@State(Scope.Thread)
+public class ExampleBlueVisionBenchmark {
+    static {
+        Frames.loadOpenCV();
+    }
+
+    private static final Scalar LOW_BLUE  = new Scalar(90, 128, 30);
+    private static final Scalar HIGH_BLUE = new Scalar(170, 255, 255);
+    private static final Size BLUR_SIZE = new Size(3, 3);
+    private static final Scalar GREEN = new Scalar(0, 255, 0);
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private Mat rgba;
+    // the outlines are drawn on a copy, so every run sees the same input frame
+    private Mat canvas;
+    private final Mat hsv = new Mat();
+    private final Mat thresholded = new Mat();
+    private final Mat hierarchy = new Mat();
+    private final List<MatOfPoint> contours = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        int[] size = Frames.parse(resolution);
+        rgba = Frames.blueRgba(size[0], size[1]);
+        canvas = rgba.clone();
+        // otherwise every stage after inRange would be timed on an empty mask
+        if (processFrame() == 0) throw new IllegalStateException("The example pipeline found nothing blue at " + resolution);
+    }
+
+    @Benchmark
+    public int processFrame() {
+        Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV, 3);
+        Core.inRange(hsv, LOW_BLUE, HIGH_BLUE, thresholded);
+        Imgproc.blur(thresholded, thresholded, BLUR_SIZE);
+        contours.clear();
+        Imgproc.findContours(thresholded, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        Imgproc.drawContours(canvas, contours, -1, GREEN, 2);
+        int count = contours.size();
+        for (MatOfPoint contour : contours) contour.release();
+        return count;
+    }
+}
@@ -0,0 +1,110 @@
+package org.BeehiveRobotics.RoverRuckusCV.benchmarks;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Makes the fixed input frames the benchmarks run on: a grey field with a yellow cube between two white balls,
+ * laid out the same at every resolution, so every run and every version sees the same pixels.
+ */
+final class Frames {
+    private static boolean loaded = false;
+
+    private Frames() {
+    }
+
+    /**
+     * Loads the OpenCV native library bundled with the desktop OpenCV jar. Benchmarks call this from a static block,
+     * before any of their Mat fields are created.
+     */
+    static synchronized void loadOpenCV() {
+        if (loaded) return;
+        nu.pattern.OpenCV.loadLocally();
+        loaded = true;
+    }
+
+    /**
+     * @param resolution e.g. "640x480"
+     * @return {width, height}
+     */
+    static int[] parse(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /**
+     * @return an RGBA frame of the sample field, with the cube in the middle; the cube and balls take up the same
+     *         share of the frame at every resolution, well inside SampleFinder's size ranges, so the detector takes
+     *         the same path through every stage whatever the size or shape of the frame
+     */
+    static Mat rgba(int width, int height) {
+        Mat rgba = new Mat(height, width, CvType.CV_8UC4, new Scalar(110, 110, 110, 255));
+        int cube = cubeSide(width, height);
+        int ball = ballDiameter(width, height);
+        int y = height / 2;
+        Imgproc.circle(rgba, new Point(width / 4, y), ball / 2, new Scalar(250, 250, 250, 255), -1);
+        Imgproc.rectangle(rgba, new Point(width / 2 - cube / 2, y - cube / 2), new Point(width / 2 + cube / 2, y + cube / 2),
+                new Scalar(230, 180, 20, 255), -1);
+        Imgproc.circle(rgba, new Point(width * 3 / 4, y), ball / 2, new Scalar(250, 250, 250, 255), -1);
+        addNoise(rgba);
+        return rgba;
+    }
+
+    /**
+     * @return an RGBA frame with a blue ball on the grey field, for the example pipeline that looks for blue, laid out
+     *         like {@link #rgba(int, int)} so it scales with the resolution the same way
+     */
+    static Mat blueRgba(int width, int height) {
+        Mat rgba = new Mat(height, width, CvType.CV_8UC4, new Scalar(110, 110, 110, 255));
+        Imgproc.circle(rgba, new Point(width / 2, height / 2), ballDiameter(width, height) / 2, new Scalar(30, 60, 220, 255), -1);
+        addNoise(rgba);
+        return rgba;
+    }
+
+    // About the middle of SampleFinder's sizes, which are fractions of the frame's area: 0.0163 to 0.0326 for the cube,
+    // 0.0195 to 0.0391 for a ball
+    private static int cubeSide(int width, int height) {
+        return (int) Math.round(Math.sqrt(0.024 * width * height));
+    }
+
+    private static int ballDiameter(int width, int height) {
+        return (int) Math.round(Math.sqrt(0.028 * width * height * 4 / Math.PI));
+    }
+
+    // a little noise so the thresholds and contours have some edges to deal with
+    private static void addNoise(Mat rgba) {
+        Core.setRNGSeed(5484);
+        Mat noise = new Mat(rgba.rows(), rgba.cols(), CvType.CV_8UC4);
+        Core.randu(noise, 0, 16);
+        Core.add(rgba, noise, rgba);
+        Core.subtract(rgba, new Scalar(8, 8, 8, 0), rgba);
+        noise.release();
+    }
+
+    /**
+     * @return the same frame as {@link #rgba(int, int)}, as the NV21 bytes the camera would deliver
+     */
+    static byte[] nv21(Mat rgba) {
+        int width = rgba.cols();
+        int height = rgba.rows();
+        Mat i420 = new Mat();
+        Imgproc.cvtColor(rgba, i420, Imgproc.COLOR_RGBA2YUV_I420);
+        byte[] planar = new byte[(int) i420.total()];
+        i420.get(0, 0, planar);
+        i420.release();
+        // I420 is Y, then all of U, then all of V; NV21 is Y, then V and U interleaved
+        byte[] nv21 = new byte[planar.length];
+        int frameSize = width * height;
+        int quarter = frameSize / 4;
+        System.arraycopy(planar, 0, nv21, 0, frameSize);
+        for (int i = 0; i < quarter; i++) {
+            nv21[frameSize + 2 * i] = planar[frameSize + quarter + i];
+            nv21[frameSize + 2 * i + 1] = planar[frameSize + i];
+        }
+        return nv21;
+    }
+}
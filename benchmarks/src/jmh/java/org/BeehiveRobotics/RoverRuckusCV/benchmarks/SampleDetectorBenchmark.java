@@ -0,0 +1,221 @@
+package org.BeehiveRobotics.RoverRuckusCV.benchmarks;
+
+import org.BeehiveRobotics.RoverRuckusCV.BlobExtractor;
+import org.BeehiveRobotics.RoverRuckusCV.FrameRotation;
+import org.BeehiveRobotics.RoverRuckusCV.HsvConverter;
+import org.BeehiveRobotics.RoverRuckusCV.Overlay;
+import org.BeehiveRobotics.RoverRuckusCV.YuvColorTable;
+import org.BeehiveRobotics.RoverRuckusCV.Detectors.SampleFinder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times each stage of SampleDetector's pipeline on its own, plus the whole classic (HSV + findContours) pipeline,
+ * on fixed frames at a few resolutions. The stages are SampleFinder's own methods, which SampleDetector runs on the
+ * phone, with SampleFinder's thresholds; the colour conversions and findContours are timed through the OpenCV calls
+ * they make. Every stage gets the output of the stage before it, worked out once in setup.
+ *
+ * Run with {@code gradle jmh} from this folder; the gc profiler adds the allocation rate per operation.
+ */
+@State(Scope.Thread)
+public class SampleDetectorBenchmark {
+    static {
+        Frames.loadOpenCV();
+    }
+
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    private int width;
+    private int height;
+
+    private Mat rgba;
+    private final SampleFinder finder = new SampleFinder();
+    private final SampleFinder blobFinder = new SampleFinder();
+    // stays as setup left it, for the stages after findContours
+    private final SampleFinder.Frame frame = new SampleFinder.Frame();
+    // for the stages that run on the blob extractor's results
+    private final SampleFinder.Frame blobFrame = new SampleFinder.Frame();
+    // convert and threshold write into this one, so the frame above keeps its contours
+    private final SampleFinder.Frame stageFrame = new SampleFinder.Frame();
+    private final Overlay overlay = new Overlay();
+
+    private Mat yellow;
+    private Mat white;
+    private final Mat hierarchy = new Mat();
+    private final List<MatOfPoint> contours = new ArrayList<>();
+
+    private byte[] nv21;
+    private Mat nv21Mat;
+    private final Mat cameraRgba = new Mat();
+    private final Mat hsv = new Mat();
+    private final Mat rgb = new Mat();
+    private byte[] hsvBytes;
+    private YuvColorTable table;
+    private byte[][] masks;
+    private BlobExtractor yellowBlobs;
+    private BlobExtractor whiteBlobs;
+
+    @Setup
+    public void setup() {
+        int[] size = Frames.parse(resolution);
+        width = size[0];
+        height = size[1];
+
+        rgba = Frames.rgba(width, height);
+        begin(finder, frame);
+        finder.process(frame);
+        // otherwise the later stages would be timed on a frame that took a different path, e.g. found nothing
+        if (frame.getCubePosition() != SampleFinder.CubePosition.MIDDLE) {
+            throw new IllegalStateException("SampleFinder found the cube " + frame.getCubePosition() + " at " + resolution);
+        }
+        // the outlines are only recorded for frames the display will show, so time the case where they are
+        frame.setOverlayShown(true);
+        begin(finder, stageFrame);
+        finder.convert(stageFrame);
+
+        nv21 = Frames.nv21(rgba);
+        nv21Mat = new Mat(height * 3 / 2, width, CvType.CV_8UC1);
+        nv21Mat.put(0, 0, nv21);
+        hsvBytes = new byte[width * height * 3];
+        table = finder.buildColorTable();
+        masks = new byte[2][width * height];
+        table.classify(nv21, width, height, masks);
+        // findContours and the blob extractor get the colour table's masks, which come from the same ranges
+        yellow = new Mat(height, width, CvType.CV_8UC1);
+        white = new Mat(height, width, CvType.CV_8UC1);
+        yellow.put(0, 0, masks[0]);
+        white.put(0, 0, masks[1]);
+        yellowBlobs = new BlobExtractor();
+        whiteBlobs = new BlobExtractor();
+        yellowBlobs.extract(masks[0], width, height);
+        whiteBlobs.extract(masks[1], width, height);
+        blobFinder.setBlobExtractorEnabled(true);
+        begin(blobFinder, blobFrame);
+        filterBlobs();
+        if (blobFrame.getCubePosition() != SampleFinder.CubePosition.MIDDLE) {
+            throw new IllegalStateException("The blob extractor found the cube " + blobFrame.getCubePosition() + " at " + resolution);
+        }
+    }
+
+    private void begin(SampleFinder finder, SampleFinder.Frame frame) {
+        finder.begin(frame, rgba, 1, FrameRotation.ROTATION_90, 0, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        yellowBlobs.shutdown();
+        whiteBlobs.shutdown();
+        finder.shutdown();
+        blobFinder.shutdown();
+    }
+
+    @Benchmark
+    public SampleFinder.Frame convertToHsv() {
+        finder.convert(stageFrame);
+        return stageFrame;
+    }
+
+    // what a pipeline pays to get HSV from the camera: NV21 -> RGBA in the frame, then RGBA -> HSV
+    @Benchmark
+    public Mat nv21ToRgbaToHsv() {
+        Imgproc.cvtColor(nv21Mat, cameraRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+        Imgproc.cvtColor(cameraRgba, hsv, Imgproc.COLOR_RGB2HSV, 3);
+        return hsv;
+    }
+
+    @Benchmark
+    public Mat nv21ToHsvNative() {
+        HsvConverter.convert(nv21Mat, hsv, rgb);
+        return hsv;
+    }
+
+    @Benchmark
+    public byte[] nv21ToHsvJava() {
+        HsvConverter.convert(nv21, width, height, hsvBytes);
+        return hsvBytes;
+    }
+
+    @Benchmark
+    public SampleFinder.Frame inRange() {
+        finder.threshold(stageFrame);
+        return stageFrame;
+    }
+
+    @Benchmark
+    public byte[][] colorTableClassify() {
+        table.classify(nv21, width, height, masks);
+        return masks;
+    }
+
+    @Benchmark
+    public int findContours() {
+        return findAndRelease(yellow) + findAndRelease(white);
+    }
+
+    @Benchmark
+    public int blobExtractor() {
+        return yellowBlobs.extract(masks[0], width, height);
+    }
+
+    // the size filter on the contours setup found, then the shape and position checks
+    @Benchmark
+    public SampleFinder.CubePosition filterContours() {
+        finder.filterContours(frame);
+        finder.classify(frame);
+        return frame.getCubePosition();
+    }
+
+    // the same, on the blob extractor's results
+    @Benchmark
+    public SampleFinder.CubePosition filterBlobList() {
+        filterBlobs();
+        return blobFrame.getCubePosition();
+    }
+
+    private void filterBlobs() {
+        blobFinder.filterBlobs(blobFrame, yellowBlobs, SampleFinder.YELLOW);
+        blobFinder.filterBlobs(blobFrame, whiteBlobs, SampleFinder.WHITE);
+        blobFinder.classify(blobFrame);
+    }
+
+    // records the boxes, the outlines and the position for the display, as SampleDetector does for every frame
+    @Benchmark
+    public Overlay drawOverlay() {
+        finder.draw(frame, overlay);
+        return overlay;
+    }
+
+    /**
+     * The whole classic pipeline, as SampleDetector runs it without the colour table or the blob extractor.
+     * Like on the phone, the contours are left for the garbage collector, so the gc profiler shows what that costs.
+     */
+    @Benchmark
+    public int hsvPipeline() {
+        finder.convert(stageFrame);
+        finder.threshold(stageFrame);
+        finder.findContours(stageFrame);
+        finder.classify(stageFrame);
+        return stageFrame.getCandidates().size();
+    }
+
+    // the contours' native memory is freed straight away, so it doesn't pile up waiting for the garbage collector
+    private int findAndRelease(Mat mask) {
+        contours.clear();
+        Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        int count = contours.size();
+        for (MatOfPoint contour : contours) contour.release();
+        return count;
+    }
+}
@@ -0,0 +1,137 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks BlobExtractor against a plain flood fill on random masks, with enough thread counts and mask heights that
+ * blobs get cut by stripe boundaries in every way, including odd numbers of stripes and stripes of unequal height.
+ */
+public class BlobExtractorTest {
+    private static final int[] THREADS = { 1, 2, 3, 4, 5 };
+    // with 8 rows per stripe at least, these give 1 to 5 stripes, some of them uneven
+    private static final int[] HEIGHTS = { 1, 7, 8, 17, 24, 29, 40, 53, 64 };
+    private static final int[] WIDTHS = { 1, 5, 31, 64 };
+    private static final double[] DENSITIES = { 0.1, 0.4, 0.6, 0.9 };
+    private static final int MASKS_PER_SIZE = 3;
+
+    @Test
+    public void matchesFloodFill() {
+        Random random = new Random(12345);
+        for (int threads : THREADS) {
+            BlobExtractor extractor = new BlobExtractor(threads);
+            try {
+                for (int height : HEIGHTS) {
+                    for (int width : WIDTHS) {
+                        for (double density : DENSITIES) {
+                            for (int i = 0; i < MASKS_PER_SIZE; i++) {
+                                byte[] mask = randomMask(random, width, height, density);
+                                String what = threads + " threads, " + width + "x" + height + ", density " + density;
+                                assertEquals(what, floodFill(mask, width, height), extract(extractor, mask, width, height));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                extractor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void blobsSpanningEveryStripe() {
+        // vertical bars and a diagonal line cross every stripe boundary, and the diagonal only touches corners
+        int width = 32;
+        int height = 40;
+        byte[] mask = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            mask[y * width + 2] = 1;
+            mask[y * width + 30] = (byte) 255;
+            if (y < width - 8) mask[y * width + 4 + y] = 1;
+        }
+        for (int threads : THREADS) {
+            BlobExtractor extractor = new BlobExtractor(threads);
+            try {
+                assertEquals(threads + " threads", floodFill(mask, width, height), extract(extractor, mask, width, height));
+                assertEquals(threads + " threads", 3, extractor.getCount());
+            } finally {
+                extractor.shutdown();
+            }
+        }
+    }
+
+    private static byte[] randomMask(Random random, int width, int height, double density) {
+        byte[] mask = new byte[width * height];
+        for (int i = 0; i < mask.length; i++) {
+            // any non-zero byte counts, not just 255
+            if (random.nextDouble() < density) mask[i] = (byte) (1 + random.nextInt(255));
+        }
+        return mask;
+    }
+
+    private static List<String> extract(BlobExtractor extractor, byte[] mask, int width, int height) {
+        int count = extractor.extract(mask, width, height);
+        List<String> blobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            blobs.add(describe(extractor.getAreas()[i], extractor.getLefts()[i], extractor.getTops()[i],
+                    extractor.getWidths()[i], extractor.getHeights()[i],
+                    extractor.getCentroidXs()[i], extractor.getCentroidYs()[i]));
+        }
+        Collections.sort(blobs);
+        return blobs;
+    }
+
+    // The reference: a breadth-first flood fill from every unvisited pixel, 8-connected
+    private static List<String> floodFill(byte[] mask, int width, int height) {
+        boolean[] visited = new boolean[width * height];
+        int[] queue = new int[width * height];
+        List<String> blobs = new ArrayList<>();
+        for (int start = 0; start < mask.length; start++) {
+            if (mask[start] == 0 || visited[start]) continue;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            visited[start] = true;
+            int area = 0;
+            int left = width, top = height, right = -1, bottom = -1;
+            long sumX = 0, sumY = 0;
+            while (head < tail) {
+                int pixel = queue[head++];
+                int x = pixel % width;
+                int y = pixel / width;
+                area++;
+                sumX += x;
+                sumY += y;
+                left = Math.min(left, x);
+                top = Math.min(top, y);
+                right = Math.max(right, x);
+                bottom = Math.max(bottom, y);
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+                        int next = ny * width + nx;
+                        if (mask[next] == 0 || visited[next]) continue;
+                        visited[next] = true;
+                        queue[tail++] = next;
+                    }
+                }
+            }
+            blobs.add(describe(area, left, top, right - left + 1, bottom - top + 1,
+                    sumX / (double) area, sumY / (double) area));
+        }
+        Collections.sort(blobs);
+        return blobs;
+    }
+
+    private static String describe(int area, int left, int top, int width, int height, double x, double y) {
+        return String.format("area %d, box %d,%d %dx%d, centroid %.6f,%.6f", area, left, top, width, height, x, y);
+    }
+}
@@ -0,0 +1,125 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks BlobList's adding, removing and growing, and that snapshots are immutable copies.
+ */
+public class BlobListTest {
+
+    @Test
+    public void addGrowsPastTheCapacity() {
+        BlobList list = new BlobList(2);
+        for (int i = 0; i < 5; i++) list.add(i, 10 + i, 20 + i, 30 + i, 40 + i, i % 2);
+        assertEquals(5, list.size());
+        for (int i = 0; i < 5; i++) assertBlob(list, i, i);
+    }
+
+    @Test
+    public void removeMovesLaterBlobsDown() {
+        BlobList list = new BlobList();
+        for (int i = 0; i < 5; i++) list.add(i, 10 + i, 20 + i, 30 + i, 40 + i, i % 2);
+        list.remove(1);
+        list.remove(3);
+        list.remove(0);
+        assertEquals(2, list.size());
+        assertBlob(list, 0, 2);
+        assertBlob(list, 1, 3);
+    }
+
+    @Test
+    public void removingBackwardsVisitsEveryBlob() {
+        // the way SampleDetector filters a list in place
+        BlobList list = new BlobList();
+        int[] ys = { 5, 100, 110, 6, 120 };
+        for (int y : ys) list.add(0, y, 1, 1, 1, 0);
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.getY(i) >= 100) list.remove(i);
+        }
+        assertEquals(2, list.size());
+        assertEquals(5, list.getY(0));
+        assertEquals(6, list.getY(1));
+    }
+
+    @Test
+    public void addAllAppends() {
+        BlobList first = new BlobList(1);
+        first.add(0, 10, 20, 30, 40, 0);
+        BlobList second = new BlobList();
+        for (int i = 1; i < 4; i++) second.add(i, 10 + i, 20 + i, 30 + i, 40 + i, i % 2);
+        first.addAll(second);
+        assertEquals(4, first.size());
+        for (int i = 0; i < 4; i++) assertBlob(first, i, i);
+    }
+
+    @Test
+    public void snapshotIsAnImmutableCopy() {
+        BlobList list = new BlobList();
+        list.add(0, 10, 20, 30, 40, 0);
+        list.add(1, 11, 21, 31, 41, 1);
+        BlobList snapshot = list.snapshot();
+
+        // changing or reusing the list afterwards leaves the snapshot alone
+        list.remove(0);
+        list.clear();
+        list.add(9, 9, 9, 9, 9, 9);
+        assertEquals(2, snapshot.size());
+        assertBlob(snapshot, 0, 0);
+        assertBlob(snapshot, 1, 1);
+
+        try {
+            snapshot.add(0, 0, 0, 0, 0, 0);
+            fail("add on a snapshot");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            snapshot.remove(0);
+            fail("remove on a snapshot");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            snapshot.clear();
+            fail("clear on a snapshot");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            snapshot.addAll(list);
+            fail("addAll on a snapshot");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(2, snapshot.size());
+    }
+
+    @Test
+    public void indexesAreChecked() {
+        BlobList list = new BlobList();
+        list.add(0, 0, 0, 0, 0, 0);
+        list.clear();
+        assertTrue(list.isEmpty());
+        try {
+            list.getX(0);
+            fail("getX past the end");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            list.remove(-1);
+            fail("remove before the start");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    // Blob i was added as (i, 10 + i, 20 + i, 30 + i, 40 + i, i % 2)
+    private static void assertBlob(BlobList list, int index, int i) {
+        String what = "blob " + index;
+        assertEquals(what, i, list.getX(index));
+        assertEquals(what, 10 + i, list.getY(index));
+        assertEquals(what, 20 + i, list.getWidth(index));
+        assertEquals(what, 30 + i, list.getHeight(index));
+        assertEquals(what, 40 + i, list.getArea(index));
+        assertEquals(what, i % 2, list.getLabel(index));
+    }
+}
@@ -0,0 +1,211 @@
+package org.BeehiveRobotics.RoverRuckusCV.Detectors;
+
+import org.BeehiveRobotics.RoverRuckusCV.BlobList;
+import org.BeehiveRobotics.RoverRuckusCV.CameraFrame;
+import org.BeehiveRobotics.RoverRuckusCV.FrameRecorder;
+import org.BeehiveRobotics.RoverRuckusCV.FrameReplayer;
+import org.BeehiveRobotics.RoverRuckusCV.FrameRotation;
+import org.BeehiveRobotics.RoverRuckusCV.ReplayFrameSource;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records frames of the sample field with FrameRecorder, plays them back with ReplayFrameSource and FrameReplayer, and
+ * checks that SampleFinder finds the cube in each of them, the way a recording from the phone would be checked on a
+ * laptop. Every way of labelling and grouping the pixels is run on the same recording.
+ */
+public class SampleFinderReplayTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final SampleFinder.CubePosition[] POSITIONS = {
+            SampleFinder.CubePosition.LEFT, SampleFinder.CubePosition.MIDDLE, SampleFinder.CubePosition.RIGHT
+    };
+    // a few rounds of every position, so the finder sees the cube move between frames it reuses
+    private static final int FRAMES = POSITIONS.length * 3;
+    private static final long FIRST_TIMESTAMP = 1000000000L;
+    private static final long FRAME_INTERVAL = 33000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void replayRoundTrip() throws IOException, InterruptedException {
+        File file = record();
+        final ReplayFrameSource source = new ReplayFrameSource(file);
+        try {
+            assertEquals(WIDTH, source.getWidth());
+            assertEquals(HEIGHT, source.getHeight());
+            assertEquals(FRAMES, source.getFrameCount());
+            final List<Long> timestamps = new ArrayList<Long>();
+            final List<Long> sequences = new ArrayList<Long>();
+            long frames = FrameReplayer.replay(source, false, new FrameReplayer.Listener() {
+                @Override
+                public void onFrame(CameraFrame frame) {
+                    timestamps.add(source.getTimestamp());
+                    sequences.add(frame.sequence());
+                    assertEquals(HEIGHT * 3 / 2, frame.yuv().rows());
+                    assertEquals(HEIGHT, frame.gray().rows());
+                    assertEquals(CvType.CV_8UC4, frame.rgba().type());
+                }
+            });
+            assertEquals(FRAMES, frames);
+            for (int i = 0; i < FRAMES; i++) {
+                assertEquals(FIRST_TIMESTAMP + i * FRAME_INTERVAL, (long) timestamps.get(i));
+                assertEquals(i, (long) sequences.get(i));
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void findsTheCubeWithContours() throws IOException, InterruptedException {
+        assertFindsCube(false, false, 1);
+    }
+
+    @Test
+    public void findsTheCubeWithTheColorTable() throws IOException, InterruptedException {
+        assertFindsCube(true, false, 1);
+    }
+
+    @Test
+    public void findsTheCubeWithTheBlobExtractor() throws IOException, InterruptedException {
+        assertFindsCube(false, true, 1);
+    }
+
+    @Test
+    public void findsTheCubeWithTheColorTableAndBlobExtractor() throws IOException, InterruptedException {
+        assertFindsCube(true, true, 1);
+    }
+
+    @Test
+    public void findsTheCubeAtHalfResolution() throws IOException, InterruptedException {
+        assertFindsCube(false, false, 2);
+        assertFindsCube(true, true, 2);
+    }
+
+    private void assertFindsCube(boolean colorTable, boolean blobExtractor, final int scale) throws IOException, InterruptedException {
+        final String what = (colorTable ? "colour table" : "HSV") + (blobExtractor ? ", blob extractor" : ", contours") + ", scale " + scale;
+        final SampleFinder finder = new SampleFinder();
+        finder.setBlobExtractorEnabled(blobExtractor);
+        if (colorTable) finder.setColorTable(finder.buildColorTable());
+        final boolean useColorTable = colorTable;
+        final SampleFinder.Frame frame = new SampleFinder.Frame();
+        final Mat scaled = new Mat();
+        final Mat rotated = new Mat();
+        final List<SampleFinder.CubePosition> found = new ArrayList<SampleFinder.CubePosition>();
+        ReplayFrameSource source = new ReplayFrameSource(record());
+        try {
+            FrameReplayer.replay(source, false, new FrameReplayer.Listener() {
+                @Override
+                public void onFrame(CameraFrame replayed) {
+                    // a landscape display leaves the frames as the camera captured them
+                    Mat rgba = FrameRotation.toDisplay(replayed.rgba(), scaled, rotated, scale, FrameRotation.ROTATION_90);
+                    finder.begin(frame, rgba, scale, FrameRotation.ROTATION_90, replayed.timestamp(), replayed.sequence());
+                    if (useColorTable) finder.setRaw(frame, replayed.yuvData(), replayed.yuv(), WIDTH, HEIGHT);
+                    finder.process(frame);
+                    found.add(frame.getCubePosition());
+                    assertEquals(what, replayed.sequence(), frame.getSequence());
+                    assertCandidatesAtFullResolution(what, frame.getCandidates());
+                }
+            });
+        } finally {
+            source.close();
+            finder.shutdown();
+        }
+        assertEquals(what, FRAMES, found.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(what + ", frame " + i, POSITIONS[i % POSITIONS.length], found.get(i));
+        }
+    }
+
+    // one cube and two balls, about the size they were drawn whatever the processing scale
+    private static void assertCandidatesAtFullResolution(String what, BlobList candidates) {
+        assertEquals(what, 3, candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            int expected = candidates.getLabel(i) == SampleFinder.YELLOW ? cubeSide() : ballDiameter();
+            assertEquals(what, expected, candidates.getWidth(i), expected * 0.1);
+        }
+    }
+
+    private File record() throws IOException {
+        File file = folder.newFile();
+        FrameRecorder recorder = new FrameRecorder(file, WIDTH, HEIGHT);
+        Mat yuv = new Mat(HEIGHT * 3 / 2, WIDTH, CvType.CV_8UC1);
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                yuv.put(0, 0, nv21(field(i % POSITIONS.length)));
+                recorder.record(yuv, FIRST_TIMESTAMP + i * FRAME_INTERVAL);
+            }
+        } finally {
+            recorder.close();
+        }
+        yuv.release();
+        return file;
+    }
+
+    // The minerals are sized from the middle of SampleFinder's ranges, which are fractions of the frame's area
+    private static int cubeSide() {
+        return (int) Math.round(Math.sqrt(0.024 * WIDTH * HEIGHT));
+    }
+
+    private static int ballDiameter() {
+        return (int) Math.round(Math.sqrt(0.028 * WIDTH * HEIGHT * 4 / Math.PI));
+    }
+
+    // A grey field with the yellow cube in the given slot and white balls in the other two, all in a row
+    private static Mat field(int cubeSlot) {
+        Mat rgba = new Mat(HEIGHT, WIDTH, CvType.CV_8UC4, new Scalar(110, 110, 110, 255));
+        int y = HEIGHT / 2;
+        for (int slot = 0; slot < POSITIONS.length; slot++) {
+            int x = WIDTH * (slot + 1) / 4;
+            if (slot == cubeSlot) {
+                int half = cubeSide() / 2;
+                Imgproc.rectangle(rgba, new Point(x - half, y - half), new Point(x + half, y + half),
+                        new Scalar(230, 180, 20, 255), -1);
+            } else {
+                Imgproc.circle(rgba, new Point(x, y), ballDiameter() / 2, new Scalar(250, 250, 250, 255), -1);
+            }
+        }
+        return rgba;
+    }
+
+    // What the camera would deliver for the frame
+    private static byte[] nv21(Mat rgba) {
+        Mat i420 = new Mat();
+        Imgproc.cvtColor(rgba, i420, Imgproc.COLOR_RGBA2YUV_I420);
+        byte[] planar = new byte[(int) i420.total()];
+        i420.get(0, 0, planar);
+        i420.release();
+        rgba.release();
+        // I420 is Y, then all of U, then all of V; NV21 is Y, then V and U interleaved
+        byte[] nv21 = new byte[planar.length];
+        int frameSize = WIDTH * HEIGHT;
+        int quarter = frameSize / 4;
+        System.arraycopy(planar, 0, nv21, 0, frameSize);
+        for (int i = 0; i < quarter; i++) {
+            nv21[frameSize + 2 * i] = planar[frameSize + quarter + i];
+            nv21[frameSize + 2 * i + 1] = planar[frameSize + i];
+        }
+        return nv21;
+    }
+}
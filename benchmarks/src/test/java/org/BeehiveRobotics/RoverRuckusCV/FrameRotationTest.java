@@ -0,0 +1,142 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the rotation path OpenCVPipeline runs on every frame allocates nothing once its Mats have been sized,
+ * neither on the Java heap nor by reallocating the native buffers behind the Mats.
+ */
+public class FrameRotationTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int WARMUP = 2000;
+    private static final int FRAMES = 2000;
+    // a few allocations can come from the test harness or the JIT, but nothing near one per frame
+    private static final long ALLOWED_BYTES = 1024;
+
+    private static final int[] ROTATIONS = {
+            FrameRotation.ROTATION_0, FrameRotation.ROTATION_90, FrameRotation.ROTATION_180, FrameRotation.ROTATION_270
+    };
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void rotatingFramesDoesNotAllocate() {
+        for (int rotation : ROTATIONS) {
+            for (int scale = 1; scale <= 2; scale++) {
+                assertNoAllocation(rotation, scale);
+            }
+        }
+    }
+
+    @Test
+    public void mappingRectsDoesNotAllocate() {
+        Rect rect = new Rect(10, 20, 30, 40);
+        Rect display = new Rect();
+        Rect camera = new Rect();
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long threadId = Thread.currentThread().getId();
+        for (int rotation : ROTATIONS) {
+            for (int i = 0; i < WARMUP; i++) mapRect(rect, display, camera, rotation);
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < FRAMES; i++) mapRect(rect, display, camera, rotation);
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            assertTrue("rotation " + rotation + " allocated " + allocated + " bytes", allocated <= ALLOWED_BYTES);
+            assertEquals(rect, camera);
+        }
+    }
+
+    @Test
+    public void rectsFollowTheFrame() {
+        Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(0));
+        Rect rect = new Rect(100, 50, 20, 10);
+        frame.submat(rect).setTo(new Scalar(255));
+        Mat rotated = new Mat();
+        Rect display = new Rect();
+        for (int rotation : ROTATIONS) {
+            Mat turned = FrameRotation.rotateToDisplay(frame, rotated, rotation);
+            FrameRotation.cameraRectToDisplay(rect, WIDTH, HEIGHT, display, rotation);
+            assertEquals("rotation " + rotation, rect.width * rect.height, Core.countNonZero(turned.submat(display)));
+        }
+    }
+
+    @Test
+    public void rotation180IsLeftAlone() {
+        Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(0));
+        Mat rotated = new Mat();
+        // the same as ROTATION_90: the frame itself comes back, not a turned copy
+        assertSame(frame, FrameRotation.rotateToDisplay(frame, rotated, FrameRotation.ROTATION_90));
+        assertSame(frame, FrameRotation.rotateToDisplay(frame, rotated, FrameRotation.ROTATION_180));
+        assertTrue(rotated.empty());
+        Rect rect = new Rect(100, 50, 20, 10);
+        assertEquals(rect, FrameRotation.cameraRectToDisplay(rect, WIDTH, HEIGHT, new Rect(), FrameRotation.ROTATION_180));
+        assertEquals(rect, FrameRotation.displayRectToCamera(rect, WIDTH, HEIGHT, new Rect(), FrameRotation.ROTATION_180));
+    }
+
+    @Test
+    public void rotation270TurnsUpsideDown() {
+        Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC1, new Scalar(0));
+        frame.put(0, 0, 255);
+        Mat turned = FrameRotation.rotateToDisplay(frame, new Mat(), FrameRotation.ROTATION_270);
+        assertEquals(WIDTH, turned.cols());
+        assertEquals(HEIGHT, turned.rows());
+        // the top left pixel ends up in the bottom right corner
+        assertEquals(255, turned.get(HEIGHT - 1, WIDTH - 1)[0], 0);
+        assertEquals(1, Core.countNonZero(turned));
+        Rect display = FrameRotation.cameraRectToDisplay(new Rect(0, 0, 20, 10), WIDTH, HEIGHT, new Rect(), FrameRotation.ROTATION_270);
+        assertEquals(new Rect(WIDTH - 20, HEIGHT - 10, 20, 10), display);
+    }
+
+    private static void assertNoAllocation(int rotation, int scale) {
+        Mat input = new Mat(HEIGHT, WIDTH, CvType.CV_8UC4, new Scalar(1, 2, 3, 255));
+        Mat scaled = new Mat();
+        Mat rotated = new Mat();
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long threadId = Thread.currentThread().getId();
+
+        Mat first = null;
+        for (int i = 0; i < WARMUP; i++) first = FrameRotation.toDisplay(input, scaled, rotated, scale, rotation);
+        long dataAddr = first.dataAddr();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        Mat result = null;
+        for (int i = 0; i < FRAMES; i++) result = FrameRotation.toDisplay(input, scaled, rotated, scale, rotation);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        String what = "rotation " + rotation + ", scale " + scale;
+        assertTrue(what + " allocated " + allocated + " bytes", allocated <= ALLOWED_BYTES);
+        assertSame(what, first, result);
+        // the same native buffer, so OpenCV didn't reallocate the output either
+        assertEquals(what, dataAddr, result.dataAddr());
+
+        input.release();
+        scaled.release();
+        rotated.release();
+    }
+
+    private static void mapRect(Rect rect, Rect display, Rect camera, int rotation) {
+        FrameRotation.cameraRectToDisplay(rect, WIDTH, HEIGHT, display, rotation);
+        FrameRotation.displayRectToCamera(display, WIDTH, HEIGHT, camera, rotation);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
@@ -0,0 +1,117 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that HsvConverter's Java kernels give exactly the same bytes as its OpenCV version on random NV21 frames,
+ * for whole frames, regions and every step-th pixel, both interleaved and as separate planes. Regions also start on
+ * odd pixels and rows, which share their chroma with the pixel before.
+ */
+public class HsvConverterTest {
+    // NV21 needs an even width and height; these aren't multiples of 4, so regions and steps don't line up by accident
+    private static final int WIDTH = 322;
+    private static final int HEIGHT = 242;
+    private static final int FRAMES = 5;
+    // left, top, width, height, step
+    private static final int[][] REGIONS = {
+            { 0, 0, WIDTH, HEIGHT, 1 },
+            { 0, 0, WIDTH / 2, HEIGHT / 2, 2 },
+            { 1, 1, WIDTH / 4, HEIGHT / 4, 3 },
+            { 31, 17, 100, 60, 1 },
+            { 30, 20, 60, 40, 2 },
+            { 1, 3, 20, 15, 4 },
+    };
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void wholeFramesMatchOpenCV() {
+        Random random = new Random(12345);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        byte[] java = new byte[WIDTH * HEIGHT * 3];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            random.nextBytes(nv21);
+            HsvConverter.convert(nv21, WIDTH, HEIGHT, java);
+            assertArrayEquals("frame " + frame, openCV(nv21), java);
+            // and the same as the RGBA frame OpenCVPipeline converts from when it has one
+            assertArrayEquals("frame " + frame, openCVThroughRgba(nv21), java);
+        }
+    }
+
+    @Test
+    public void regionsMatchOpenCV() {
+        Random random = new Random(54321);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            random.nextBytes(nv21);
+            byte[] whole = openCV(nv21);
+            for (int[] region : REGIONS) {
+                int left = region[0], top = region[1], width = region[2], height = region[3], step = region[4];
+                String what = "frame " + frame + ", region " + left + "," + top + " " + width + "x" + height + " step " + step;
+                byte[] expected = sample(whole, left, top, width, height, step);
+
+                byte[] interleaved = new byte[width * height * 3];
+                HsvConverter.convert(nv21, WIDTH, HEIGHT, left, top, width, height, step, interleaved);
+                assertArrayEquals(what, expected, interleaved);
+
+                byte[] hue = new byte[width * height];
+                byte[] saturation = new byte[width * height];
+                byte[] value = new byte[width * height];
+                HsvConverter.convertPlanes(nv21, WIDTH, HEIGHT, left, top, width, height, step, hue, saturation, value);
+                for (int i = 0; i < width * height; i++) {
+                    assertEquals(what + ", hue " + i, expected[3 * i], hue[i]);
+                    assertEquals(what + ", saturation " + i, expected[3 * i + 1], saturation[i]);
+                    assertEquals(what + ", value " + i, expected[3 * i + 2], value[i]);
+                }
+            }
+        }
+    }
+
+    private static byte[] openCV(byte[] nv21) {
+        Mat yuv = new Mat(HEIGHT * 3 / 2, WIDTH, CvType.CV_8UC1);
+        yuv.put(0, 0, nv21);
+        Mat hsv = new Mat();
+        HsvConverter.convert(yuv, hsv, new Mat());
+        assertEquals(WIDTH, hsv.cols());
+        assertEquals(HEIGHT, hsv.rows());
+        byte[] bytes = new byte[WIDTH * HEIGHT * 3];
+        hsv.get(0, 0, bytes);
+        return bytes;
+    }
+
+    private static byte[] openCVThroughRgba(byte[] nv21) {
+        Mat yuv = new Mat(HEIGHT * 3 / 2, WIDTH, CvType.CV_8UC1);
+        yuv.put(0, 0, nv21);
+        Mat rgba = new Mat();
+        Mat hsv = new Mat();
+        Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+        Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV, 3);
+        byte[] bytes = new byte[WIDTH * HEIGHT * 3];
+        hsv.get(0, 0, bytes);
+        return bytes;
+    }
+
+    // Picks every step-th pixel of a region out of a whole frame's HSV bytes
+    private static byte[] sample(byte[] whole, int left, int top, int width, int height, int step) {
+        byte[] sampled = new byte[width * height * 3];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int from = ((top + row * step) * WIDTH + left + col * step) * 3;
+                System.arraycopy(whole, from, sampled, (row * width + col) * 3, 3);
+            }
+        }
+        return sampled;
+    }
+}
@@ -0,0 +1,174 @@
+package org.BeehiveRobotics.RoverRuckusCV;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks YuvColorTable against the OpenCV conversions it replaces, and that saved tables only load back for the ranges
+ * they were built from.
+ */
+public class YuvColorTableTest {
+    // SampleFinder's yellow and white ranges
+    private static final Scalar[] LOWS = { new Scalar(16, 80, 60), new Scalar(0, 0, 225) };
+    private static final Scalar[] HIGHS = { new Scalar(32, 255, 255), new Scalar(179, 100, 255) };
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAMES = 5;
+    // The table only looks at the top 6 bits of Y, U and V, so colours within one cell of a range's edge can land on
+    // either side of it; on random frames that's about 0.4% of the pixels, so 1% leaves room without hiding real bugs.
+    private static final double ALLOWED_DISAGREEMENT = 0.01;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Test
+    public void matchesOpenCV() {
+        YuvColorTable table = YuvColorTable.build(LOWS, HIGHS);
+        Random random = new Random(12345);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        Mat yuv = new Mat(HEIGHT * 3 / 2, WIDTH, CvType.CV_8UC1);
+        Mat rgba = new Mat();
+        Mat hsv = new Mat();
+        Mat mask = new Mat();
+        byte[] expected = new byte[WIDTH * HEIGHT];
+        byte[][] masks = { new byte[WIDTH * HEIGHT], new byte[WIDTH * HEIGHT] };
+        for (int frame = 0; frame < FRAMES; frame++) {
+            random.nextBytes(nv21);
+            yuv.put(0, 0, nv21);
+            Imgproc.cvtColor(yuv, rgba, Imgproc.COLOR_YUV2RGBA_NV21);
+            Imgproc.cvtColor(rgba, hsv, Imgproc.COLOR_RGB2HSV);
+            table.classify(nv21, WIDTH, HEIGHT, masks);
+            for (int c = 0; c < LOWS.length; c++) {
+                Core.inRange(hsv, LOWS[c], HIGHS[c], mask);
+                mask.get(0, 0, expected);
+                int different = 0;
+                for (int i = 0; i < expected.length; i++) {
+                    if (expected[i] != masks[c][i]) different++;
+                }
+                double disagreement = different / (double) expected.length;
+                assertTrue("frame " + frame + ", range " + c + ": " + different + " pixels disagree",
+                        disagreement <= ALLOWED_DISAGREEMENT);
+            }
+        }
+    }
+
+    @Test
+    public void regionsSampleTheWholeFrameMasks() {
+        YuvColorTable table = YuvColorTable.build(LOWS, HIGHS);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(54321).nextBytes(nv21);
+        byte[][] whole = { new byte[WIDTH * HEIGHT], new byte[WIDTH * HEIGHT] };
+        table.classify(nv21, WIDTH, HEIGHT, whole);
+        int left = 30, top = 20, step = 2, width = 100, height = 80;
+        byte[][] region = { new byte[width * height], new byte[width * height] };
+        table.classify(nv21, WIDTH, HEIGHT, left, top, width, height, step, region);
+        for (int c = 0; c < LOWS.length; c++) {
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    int x = left + col * step;
+                    int y = top + row * step;
+                    if (region[c][row * width + col] != whole[c][y * WIDTH + x]) {
+                        throw new AssertionError("range " + c + " differs at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void savedTablesLoadBack() throws IOException {
+        YuvColorTable built = YuvColorTable.build(LOWS, HIGHS);
+        File file = folder.newFile("table.bin");
+        built.save(file);
+        YuvColorTable loaded = YuvColorTable.load(file, LOWS, HIGHS);
+        assertNotNull(loaded);
+
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(777).nextBytes(nv21);
+        byte[][] expected = { new byte[WIDTH * HEIGHT], new byte[WIDTH * HEIGHT] };
+        byte[][] actual = { new byte[WIDTH * HEIGHT], new byte[WIDTH * HEIGHT] };
+        built.classify(nv21, WIDTH, HEIGHT, expected);
+        loaded.classify(nv21, WIDTH, HEIGHT, actual);
+        for (int c = 0; c < LOWS.length; c++) assertArrayEquals("range " + c, expected[c], actual[c]);
+
+        // a loaded table saves the same bytes again
+        File again = folder.newFile("again.bin");
+        loaded.save(again);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(again.toPath()));
+    }
+
+    @Test
+    public void tablesForOtherRangesAreRejected() throws IOException {
+        File file = folder.newFile("table.bin");
+        YuvColorTable.build(LOWS, HIGHS).save(file);
+        // the yellow range retuned after the table was saved
+        Scalar[] lows = { new Scalar(18, 80, 60), LOWS[1] };
+        assertNull(YuvColorTable.load(file, lows, HIGHS));
+        // or a range added
+        assertNull(YuvColorTable.load(file, new Scalar[] { LOWS[0], LOWS[1], LOWS[1] },
+                new Scalar[] { HIGHS[0], HIGHS[1], HIGHS[1] }));
+        assertNotNull(YuvColorTable.load(file, LOWS, HIGHS));
+    }
+
+    @Test
+    public void staleAndShortFilesAreRejected() throws IOException {
+        assertNull(YuvColorTable.load(new File(folder.getRoot(), "missing.bin"), LOWS, HIGHS));
+
+        File stale = folder.newFile("stale.bin");
+        YuvColorTable.build(LOWS, HIGHS).save(stale);
+        // a table saved with a different number of bits, by an older build
+        RandomAccessFile raf = new RandomAccessFile(stale, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(YuvColorTable.BITS - 1);
+        } finally {
+            raf.close();
+        }
+        assertNull(YuvColorTable.load(stale, LOWS, HIGHS));
+
+        File corrupt = folder.newFile("corrupt.bin");
+        YuvColorTable.build(LOWS, HIGHS).save(corrupt);
+        raf = new RandomAccessFile(corrupt, "rw");
+        try {
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+        assertNull(YuvColorTable.load(corrupt, LOWS, HIGHS));
+
+        // cut short, e.g. by the robot controller being switched off while saving
+        File shortFile = folder.newFile("short.bin");
+        YuvColorTable.build(LOWS, HIGHS).save(shortFile);
+        raf = new RandomAccessFile(shortFile, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        assertNull(YuvColorTable.load(shortFile, LOWS, HIGHS));
+        assertNull(YuvColorTable.load(folder.newFile("empty.bin"), LOWS, HIGHS));
+    }
+}
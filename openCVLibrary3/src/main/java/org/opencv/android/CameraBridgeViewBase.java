@@ -1,5 +1,7 @@
 package org.opencv.android;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.opencv.BuildConfig;
@@ -49,6 +51,8 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     protected int mCameraIndex = CAMERA_ID_ANY;
     protected boolean mEnabled;
     protected FpsMeter mFpsMeter = null;
+    private final FrameMetrics mFrameMetrics = new FrameMetrics();
+    private volatile List<Size> mSupportedFrameSizes = Collections.emptyList();
 
     public static final int CAMERA_ID_ANY   = -1;
     public static final int CAMERA_ID_BACK  = 99;
@@ -188,6 +192,31 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
          * This method returns single channel gray scale Mat with frame
          */
         public Mat gray();
+
+        /**
+         * This method returns the raw single channel YUV 4:2:0 semi-planar Mat the frame was captured in:
+         * height rows of Y followed by height/2 rows of interleaved chroma
+         */
+        public Mat yuv();
+
+        /**
+         * This method returns the same data as yuv() in the byte array the camera wrote it to, without copying it
+         * into a Mat, for Java code that reads the pixels itself. The array goes back to the camera once the frame
+         * has been delivered, so it must not be kept. Returns null if the frame isn't backed by a byte array
+         */
+        public byte[] yuvData();
+
+        /**
+         * This method returns when the frame arrived from the camera, in System.nanoTime() time, so results computed
+         * from the frame can tell how old they are
+         */
+        public long timestamp();
+
+        /**
+         * This method returns the frame's number, counting up from 0 each time the camera is connected; gaps mean
+         * frames were dropped before reaching the listener
+         */
+        public long sequence();
     };
 
     public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
@@ -255,6 +284,42 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             mFpsMeter = null;
     }
 
+    /**
+     * This method returns the frame counters since the camera was last connected; they keep counting while the view
+     * is running, so the same object can be read repeatedly
+     */
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    /**
+     * This method shall be called by the subclasses every time the camera hands over a frame
+     */
+    protected void onFrameDelivered() {
+        mFrameMetrics.frameDelivered();
+    }
+
+    /**
+     * This method shall be called by subclasses that override deliverAndDrawFrame, once the listener has the frame
+     */
+    protected void onFrameProcessed() {
+        mFrameMetrics.frameProcessed();
+    }
+
+    /**
+     * This method shall be called by the subclasses when a frame is replaced by a newer one before it was delivered
+     */
+    protected void onFrameOverwritten() {
+        mFrameMetrics.frameOverwritten();
+    }
+
+    /**
+     * This method shall be called by the subclasses when the camera is left with no free buffer to capture into
+     */
+    protected void onCameraStarved() {
+        mFrameMetrics.cameraStarved();
+    }
+
     /**
      *
      * @param listener
@@ -284,6 +349,15 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         mMaxHeight = maxHeight;
     }
 
+    /**
+     * The frame sizes setMaxFrameSize() can choose between: every preview size the camera supports that fits the
+     * surface, as found the last time the camera was connected.
+     * @return the sizes, or an empty list if the camera hasn't been connected yet
+     */
+    public List<Size> getSupportedFrameSizes() {
+        return mSupportedFrameSizes;
+    }
+
     public void SetCaptureFormat(int format)
     {
         mPreviewFormat = format;
@@ -356,6 +430,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     // Bitmap must be constructed before surface
     private void onEnterStartedState() {
         Log.d(TAG, "call onEnterStartedState");
+        mFrameMetrics.reset();
         /* Connect camera */
         if (!connectCamera(getWidth(), getHeight())) {
             AlertDialog ad = new AlertDialog.Builder(getContext()).create();
@@ -374,6 +449,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
 
     private void onExitStartedState() {
         disconnectCamera();
+        Log.i(TAG, "Frame metrics: " + mFrameMetrics);
         if (mCacheBitmap != null) {
             mCacheBitmap.recycle();
         }
@@ -393,6 +469,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         } else {
             modified = frame.rgba();
         }
+        onFrameProcessed();
 
         boolean bmpValid = true;
         if (modified != null) {
@@ -477,11 +554,15 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
 
         int maxAllowedWidth = (mMaxWidth != MAX_UNSPECIFIED && mMaxWidth < surfaceWidth)? mMaxWidth : surfaceWidth;
         int maxAllowedHeight = (mMaxHeight != MAX_UNSPECIFIED && mMaxHeight < surfaceHeight)? mMaxHeight : surfaceHeight;
+        List<Size> fittingSizes = new ArrayList<Size>();
 
         for (Object size : supportedSizes) {
             int width = accessor.getWidth(size);
             int height = accessor.getHeight(size);
 
+            if (width <= surfaceWidth && height <= surfaceHeight)
+                fittingSizes.add(new Size(width, height));
+
             if (width <= maxAllowedWidth && height <= maxAllowedHeight) {
                 if (width >= calcWidth && height >= calcHeight) {
                     calcWidth = (int) width;
@@ -490,6 +571,7 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             }
         }
 
+        mSupportedFrameSizes = Collections.unmodifiableList(fittingSizes);
         return new Size(calcWidth, calcHeight);
     }
 }
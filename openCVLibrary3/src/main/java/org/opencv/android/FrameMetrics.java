@@ -0,0 +1,69 @@
+package org.opencv.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happens to camera frames between the camera and the listener, so it's possible to tell whether the
+ * camera or the frame processing is the bottleneck:
+ * - delivered: frames the camera handed over
+ * - processed: frames passed to the listener's onCameraFrame and drawn
+ * - overwritten: frames replaced by a newer one before the listener got to them, i.e. processing is too slow
+ * - starved: times the camera was left with no free preview buffer, so it had to drop frames until one came back
+ * If nothing is overwritten or starved, processing keeps up and the camera's frame rate is the limit.
+ *
+ * Counters are updated from the camera threads and can be read from any thread.
+ */
+public class FrameMetrics {
+    private final AtomicLong mDelivered   = new AtomicLong();
+    private final AtomicLong mProcessed   = new AtomicLong();
+    private final AtomicLong mOverwritten = new AtomicLong();
+    private final AtomicLong mStarved     = new AtomicLong();
+
+    public long getDeliveredFrames() {
+        return mDelivered.get();
+    }
+
+    public long getProcessedFrames() {
+        return mProcessed.get();
+    }
+
+    public long getOverwrittenFrames() {
+        return mOverwritten.get();
+    }
+
+    public long getStarvations() {
+        return mStarved.get();
+    }
+
+    /**
+     * Sets every counter back to 0. This happens automatically each time the camera is connected.
+     */
+    public void reset() {
+        mDelivered.set(0);
+        mProcessed.set(0);
+        mOverwritten.set(0);
+        mStarved.set(0);
+    }
+
+    void frameDelivered() {
+        mDelivered.incrementAndGet();
+    }
+
+    void frameProcessed() {
+        mProcessed.incrementAndGet();
+    }
+
+    void frameOverwritten() {
+        mOverwritten.incrementAndGet();
+    }
+
+    void cameraStarved() {
+        mStarved.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "delivered " + getDeliveredFrames() + ", processed " + getProcessedFrames()
+                + ", overwritten " + getOverwrittenFrames() + ", starved " + getStarvations();
+    }
+}
@@ -22,6 +22,7 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.ViewGroup.LayoutParams;
 
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
@@ -49,6 +50,7 @@ public class JavaCamera2View extends CameraBridgeViewBase {
     private CaptureRequest.Builder mPreviewRequestBuilder;
     private String mCameraID;
     private android.util.Size mPreviewSize = new android.util.Size(-1, -1);
+    private long mFrameSequence = 0;
 
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
@@ -163,9 +165,14 @@ public class JavaCamera2View extends CameraBridgeViewBase {
             mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
+                    long timestamp = System.nanoTime();
+                    onFrameDelivered();
                     Image image = reader.acquireLatestImage();
-                    if (image == null)
+                    // an earlier call already skipped past this image to a newer one
+                    if (image == null) {
+                        onFrameOverwritten();
                         return;
+                    }
 
                     // sanity checks - 3 planes
                     Image.Plane[] planes = image.getPlanes();
@@ -183,6 +190,8 @@ public class JavaCamera2View extends CameraBridgeViewBase {
                     Mat y_mat = new Mat(h, w, CvType.CV_8UC1, y_plane);
                     Mat uv_mat = new Mat(h / 2, w / 2, CvType.CV_8UC2, uv_plane);
                     JavaCamera2Frame tempFrame = new JavaCamera2Frame(y_mat, uv_mat, w, h);
+                    tempFrame.mTimestamp = timestamp;
+                    tempFrame.mSequence = mFrameSequence++;
                     deliverAndDrawFrame(tempFrame);
                     tempFrame.release();
                     image.close();
@@ -295,6 +304,7 @@ public class JavaCamera2View extends CameraBridgeViewBase {
     protected boolean connectCamera(int width, int height) {
         Log.i(LOGTAG, "setCameraPreviewSize(" + width + "x" + height + ")");
         startBackgroundThread();
+        mFrameSequence = 0;
         initializeCamera();
         try {
             boolean needReconfig = calcPreviewSize(width, height);
@@ -325,11 +335,16 @@ public class JavaCamera2View extends CameraBridgeViewBase {
     private class JavaCamera2Frame implements CvCameraViewFrame {
         @Override
         public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            if (mGray == null)
+                mGray = mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            return mGray;
         }
 
         @Override
         public Mat rgba() {
+            // each frame is a new object, so the conversion is done at most once per frame
+            if (mRgbaValid)
+                return mRgba;
             if (mPreviewFormat == ImageFormat.NV21)
                 Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
             else if (mPreviewFormat == ImageFormat.YV12)
@@ -339,10 +354,39 @@ public class JavaCamera2View extends CameraBridgeViewBase {
                 Imgproc.cvtColorTwoPlane(mYuvFrameData, mUVFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21);
             } else
                 throw new IllegalArgumentException("Preview Format can be NV21 or YV12");
+            mRgbaValid = true;
 
             return mRgba;
         }
 
+        @Override
+        public Mat yuv() {
+            if (mUVFrameData == null)
+                return mYuvFrameData;
+            // the planes live in separate buffers, so they have to be stacked into one Mat
+            if (mYuv == null) {
+                mYuv = new Mat();
+                Core.vconcat(Arrays.asList(mYuvFrameData, mUVFrameData.reshape(1)), mYuv);
+            }
+            return mYuv;
+        }
+
+        @Override
+        public byte[] yuvData() {
+            // the planes are in direct buffers, which can't be handed out as a byte array without a copy
+            return null;
+        }
+
+        @Override
+        public long timestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public long sequence() {
+            return mSequence;
+        }
+
         public JavaCamera2Frame(Mat Yuv420sp, int width, int height) {
             super();
             mWidth = width;
@@ -363,12 +407,21 @@ public class JavaCamera2View extends CameraBridgeViewBase {
 
         public void release() {
             mRgba.release();
+            if (mGray != null)
+                mGray.release();
+            if (mYuv != null)
+                mYuv.release();
         }
 
         private Mat mYuvFrameData;
         private Mat mUVFrameData;
+        private Mat mYuv;
+        private Mat mGray;
         private Mat mRgba;
+        private boolean mRgbaValid;
         private int mWidth;
         private int mHeight;
+        private long mTimestamp;
+        private long mSequence;
     };
 }
@@ -32,14 +32,22 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
 
-    private byte mBuffer[];
-    private Mat[] mFrameChain;
-    private int mChainIdx = 0;
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+
+    // Preview callback buffers. Each one is either queued with the camera, waiting for the worker in mPendingBuffer,
+    // or being processed by the worker; it only goes back to the camera once the worker is done with it.
+    private int mBufferCount = DEFAULT_BUFFER_COUNT;
+    private byte[][] mBuffers;
+    private int mQueuedBuffers; // guarded by this
+    private byte[] mPendingBuffer; // guarded by this
+    private long mPendingTimestamp; // guarded by this
+    private long mPendingSequence; // guarded by this
+    private Mat mFrameData;
     private Thread mThread;
     private boolean mStopThread;
 
     protected Camera mCamera;
-    protected JavaCameraFrame[] mCameraFrame;
+    protected JavaCameraFrame mCameraFrame;
     private SurfaceTexture mSurfaceTexture;
     private int mPreviewFormat = ImageFormat.NV21;
 
@@ -66,6 +74,18 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         super(context, attrs);
     }
 
+    /**
+     * This method sets how many preview buffers the camera gets. One of them is always in use by the frame being
+     * processed and another can be waiting for it, so with fewer than 3 the camera has to drop frames whenever
+     * processing is slow. Takes effect the next time the camera is connected.
+     * @param count - the number of buffers, at least 1
+     */
+    public void setPreviewBufferCount(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("There must be at least one preview buffer");
+        mBufferCount = count;
+    }
+
     protected boolean initializeCamera(int width, int height) {
         Log.d(TAG, "Initialize java camera");
         boolean result = true;
@@ -190,20 +210,20 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
                     int size = mFrameWidth * mFrameHeight;
                     size  = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
-                    mBuffer = new byte[size];
-
-                    mCamera.addCallbackBuffer(mBuffer);
+                    mBuffers = new byte[mBufferCount][];
+                    for (int i = 0; i < mBufferCount; i++) {
+                        mBuffers[i] = new byte[size];
+                        mCamera.addCallbackBuffer(mBuffers[i]);
+                    }
+                    mQueuedBuffers = mBufferCount;
+                    mPendingBuffer = null;
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                    mFrameData = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
 
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame[2];
-                    mCameraFrame[0] = new JavaCameraFrame(mFrameChain[0], mFrameWidth, mFrameHeight);
-                    mCameraFrame[1] = new JavaCameraFrame(mFrameChain[1], mFrameWidth, mFrameHeight);
+                    mCameraFrame = new JavaCameraFrame(mFrameData, mFrameWidth, mFrameHeight);
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
@@ -235,18 +255,16 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                 mCamera.release();
             }
             mCamera = null;
-            if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
-            }
-            if (mCameraFrame != null) {
-                mCameraFrame[0].release();
-                mCameraFrame[1].release();
-            }
+            mBuffers = null;
+            mPendingBuffer = null;
+            if (mFrameData != null)
+                mFrameData.release();
+            if (mCameraFrame != null)
+                mCameraFrame.release();
         }
     }
 
-    private boolean mCameraFrameReady = false;
+    private long mFrameSequence = 0;
 
     @Override
     protected boolean connectCamera(int width, int height) {
@@ -259,7 +277,7 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         if (!initializeCamera(width, height))
             return false;
 
-        mCameraFrameReady = false;
+        mFrameSequence = 0;
 
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
@@ -293,57 +311,122 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
         /* Now release camera */
         releaseCamera();
-
-        mCameraFrameReady = false;
     }
 
     @Override
     public void onPreviewFrame(byte[] frame, Camera arg1) {
         if (BuildConfig.DEBUG)
             Log.d(TAG, "Preview Frame received. Frame size: " + frame.length);
+        long timestamp = System.nanoTime();
+        onFrameDelivered();
         synchronized (this) {
-            mFrameChain[mChainIdx].put(0, 0, frame);
-            mCameraFrameReady = true;
+            mQueuedBuffers--;
+            // the worker hasn't taken the previous frame yet, so it's lost and its buffer can go straight back
+            if (mPendingBuffer != null) {
+                onFrameOverwritten();
+                recycleBuffer(mPendingBuffer);
+            }
+            // the camera has to drop frames until the worker hands a buffer back
+            if (mQueuedBuffers == 0)
+                onCameraStarved();
+            // the buffer is kept until the worker is done with it, rather than copied and handed straight back
+            mPendingBuffer = frame;
+            mPendingTimestamp = timestamp;
+            mPendingSequence = mFrameSequence++;
             this.notify();
         }
-        if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
+    }
+
+    /**
+     * Gives a preview buffer back to the camera. Called when this lock is held
+     */
+    private void recycleBuffer(byte[] buffer) {
+        // buffers from before the camera was last reconnected may be the wrong size, so they're dropped
+        if (mCamera == null || mBuffers == null || buffer.length != mBuffers[0].length)
+            return;
+        mCamera.addCallbackBuffer(buffer);
+        mQueuedBuffers++;
     }
 
     private class JavaCameraFrame implements CvCameraViewFrame {
         @Override
         public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            yuv();
+            return mGray;
         }
 
         @Override
         public Mat rgba() {
+            // converted once per frame, however many times it's asked for
+            if (mRgbaValid)
+                return mRgba;
+            yuv();
             if (mPreviewFormat == ImageFormat.NV21)
                 Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
             else if (mPreviewFormat == ImageFormat.YV12)
                 Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGB_I420, 4);  // COLOR_YUV2RGBA_YV12 produces inverted colors
             else
                 throw new IllegalArgumentException("Preview Format can be NV21 or YV12");
+            mRgbaValid = true;
 
             return mRgba;
         }
 
+        @Override
+        public Mat yuv() {
+            if (!mYuvValid && mData != null) {
+                mYuvFrameData.put(0, 0, mData);
+                mYuvValid = true;
+            }
+            return mYuvFrameData;
+        }
+
+        @Override
+        public byte[] yuvData() {
+            return mData;
+        }
+
+        @Override
+        public long timestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public long sequence() {
+            return mSequence;
+        }
+
         public JavaCameraFrame(Mat Yuv420sp, int width, int height) {
             super();
             mWidth = width;
             mHeight = height;
             mYuvFrameData = Yuv420sp;
+            // the Y plane view never changes for a given frame buffer, so it is only created once
+            mGray = mYuvFrameData.submat(0, mHeight, 0, mWidth);
             mRgba = new Mat();
         }
 
         public void release() {
+            mGray.release();
             mRgba.release();
         }
 
+        void setData(byte[] data) {
+            mData = data;
+            mYuvValid = false;
+            mRgbaValid = false;
+        }
+
+        private byte[] mData;
+        private boolean mYuvValid;
+        private boolean mRgbaValid;
         private Mat mYuvFrameData;
+        private Mat mGray;
         private Mat mRgba;
         private int mWidth;
         private int mHeight;
+        private long mTimestamp;
+        private long mSequence;
     };
 
     private class CameraWorker implements Runnable {
@@ -351,26 +434,34 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         @Override
         public void run() {
             do {
-                boolean hasFrame = false;
+                byte[] buffer = null;
                 synchronized (JavaCameraView.this) {
                     try {
-                        while (!mCameraFrameReady && !mStopThread) {
+                        while (mPendingBuffer == null && !mStopThread) {
                             JavaCameraView.this.wait();
                         }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
-                    if (mCameraFrameReady)
+                    if (mPendingBuffer != null)
                     {
-                        mChainIdx = 1 - mChainIdx;
-                        mCameraFrameReady = false;
-                        hasFrame = true;
+                        buffer = mPendingBuffer;
+                        mPendingBuffer = null;
+                        mCameraFrame.mTimestamp = mPendingTimestamp;
+                        mCameraFrame.mSequence = mPendingSequence;
                     }
                 }
 
-                if (!mStopThread && hasFrame) {
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                if (buffer != null) {
+                    if (!mStopThread) {
+                        // the buffer is only copied into the Mat if the listener asks for one
+                        mCameraFrame.setData(buffer);
+                        deliverAndDrawFrame(mCameraFrame);
+                        mCameraFrame.setData(null);
+                    }
+                    synchronized (JavaCameraView.this) {
+                        recycleBuffer(buffer);
+                    }
                 }
             } while (!mStopThread);
             Log.d(TAG, "Finish processing thread");